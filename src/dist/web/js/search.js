@@ -17,4 +17,68 @@ if (window.location.pathname.indexOf(searchPath) == 0) {
         queryInputSearch.value = searchQuery;
     }
 }
+var loadingNextSongItems = false;
+/** Loads next song items when the 'More songs' link comes near the screen (infinite scroll). */
+function loadNextSongItems() {
+    var nextLink = document.querySelector("#next-song-items");
+    if (!nextLink || loadingNextSongItems)
+        return;
+    if (nextLink.getBoundingClientRect().top > window.innerHeight * 2)
+        return;
+    loadingNextSongItems = true;
+    var req = new XMLHttpRequest();
+    req.open("GET", nextLink.getAttribute("href"), true);
+    req.setRequestHeader("Accept", "text/html");
+    req.setRequestHeader("X-Requested-With", "XMLHttpRequest");
+    req.onreadystatechange = function () {
+        if (req.readyState == 4) {
+            loadingNextSongItems = false;
+            if (req.status < 300) {
+                // replaces link with next items (and the link to the following ones if any)
+                var items = document.createElement("div");
+                items.innerHTML = req.responseText;
+                while (items.firstChild) {
+                    nextLink.parentNode.insertBefore(items.firstChild, nextLink);
+                }
+                nextLink.parentNode.removeChild(nextLink);
+                loadNextSongItems();
+            }
+        }
+    };
+    req.send();
+}
+window.addEventListener("scroll", loadNextSongItems);
+loadNextSongItems();
+var suggestRequest = null;
+/** Completes search input with titles and artists suggested by the server. */
+function suggest(text, suggestions) {
+    if (suggestRequest)
+        suggestRequest.abort();
+    if (text.trim().length == 0)
+        return;
+    var req = new XMLHttpRequest();
+    suggestRequest = req;
+    req.open("GET", "/suggest?q=" + encodeURIComponent(text), true);
+    req.setRequestHeader("Accept", "application/json");
+    req.onreadystatechange = function () {
+        if (req.readyState == 4 && req.status == 200) {
+            suggestRequest = null;
+            suggestions.innerHTML = "";
+            JSON.parse(req.responseText).forEach(function (suggestion) {
+                var option = document.createElement("option");
+                option.value = suggestion;
+                suggestions.appendChild(option);
+            });
+        }
+    };
+    req.send();
+}
+if (queryInputSearch) {
+    var querySuggestions = document.createElement("datalist");
+    querySuggestions.id = "querySuggestions";
+    queryInputSearch.parentNode.appendChild(querySuggestions);
+    queryInputSearch.setAttribute("list", querySuggestions.id);
+    queryInputSearch.setAttribute("autocomplete", "off");
+    queryInputSearch.addEventListener("input", function () { return suggest(queryInputSearch.value, querySuggestions); });
+}
 //# sourceMappingURL=search.js.map
\ No newline at end of file
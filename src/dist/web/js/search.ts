@@ -23,3 +23,70 @@ if (window.location.pathname.indexOf(searchPath) == 0) {
 
 
 
+var loadingNextSongItems = false;
+
+/** Loads next song items when the 'More songs' link comes near the screen (infinite scroll). */
+function loadNextSongItems() {
+    var nextLink = <HTMLAnchorElement>document.querySelector("#next-song-items");
+    if (!nextLink || loadingNextSongItems) return;
+    if (nextLink.getBoundingClientRect().top > window.innerHeight * 2) return;
+
+    loadingNextSongItems = true;
+    var req = new XMLHttpRequest();
+    req.open("GET", nextLink.getAttribute("href"), true);
+    req.setRequestHeader("Accept", "text/html");
+    req.setRequestHeader("X-Requested-With", "XMLHttpRequest");
+    req.onreadystatechange = () => {
+        if (req.readyState == 4) {
+            loadingNextSongItems = false;
+            if (req.status < 300) {
+                // replaces link with next items (and the link to the following ones if any)
+                var items = document.createElement("div");
+                items.innerHTML = req.responseText;
+                while (items.firstChild) {
+                    nextLink.parentNode.insertBefore(items.firstChild, nextLink);
+                }
+                nextLink.parentNode.removeChild(nextLink);
+                loadNextSongItems();
+            }
+        }
+    };
+    req.send();
+}
+
+window.addEventListener("scroll", loadNextSongItems);
+loadNextSongItems();
+
+var suggestRequest: XMLHttpRequest = null;
+
+/** Completes search input with titles and artists suggested by the server. */
+function suggest(text: string, suggestions: HTMLElement) {
+    if (suggestRequest) suggestRequest.abort();
+    if (text.trim().length == 0) return;
+
+    var req = new XMLHttpRequest();
+    suggestRequest = req;
+    req.open("GET", "/suggest?q=" + encodeURIComponent(text), true);
+    req.setRequestHeader("Accept", "application/json");
+    req.onreadystatechange = () => {
+        if (req.readyState == 4 && req.status == 200) {
+            suggestRequest = null;
+            suggestions.innerHTML = "";
+            (<string[]>JSON.parse(req.responseText)).forEach((suggestion) => {
+                var option = document.createElement("option");
+                option.value = suggestion;
+                suggestions.appendChild(option);
+            });
+        }
+    };
+    req.send();
+}
+
+if (queryInputSearch) {
+    var querySuggestions = document.createElement("datalist");
+    querySuggestions.id = "querySuggestions";
+    queryInputSearch.parentNode.appendChild(querySuggestions);
+    queryInputSearch.setAttribute("list", querySuggestions.id);
+    queryInputSearch.setAttribute("autocomplete", "off");
+    queryInputSearch.addEventListener("input", () => suggest(queryInputSearch.value, querySuggestions));
+}
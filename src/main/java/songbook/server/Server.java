@@ -2,35 +2,71 @@ package songbook.server;
 
 import io.undertow.Handlers;
 import io.undertow.Undertow;
+import io.undertow.io.IoCallback;
+import io.undertow.io.Sender;
 import io.undertow.server.HttpHandler;
 import io.undertow.server.HttpServerExchange;
 import io.undertow.server.handlers.Cookie;
 import io.undertow.server.handlers.CookieImpl;
 import io.undertow.server.handlers.ExceptionHandler;
+import io.undertow.predicate.Predicate;
+import io.undertow.predicate.Predicates;
 import io.undertow.server.handlers.GracefulShutdownHandler;
+import io.undertow.server.handlers.cache.DirectBufferCache;
+import io.undertow.server.handlers.encoding.AllowedContentEncodings;
+import io.undertow.server.handlers.encoding.ContentEncodedResourceManager;
+import io.undertow.server.handlers.encoding.ContentEncodingRepository;
+import io.undertow.server.handlers.encoding.DeflateEncodingProvider;
+import io.undertow.server.handlers.encoding.EncodingHandler;
+import io.undertow.server.handlers.encoding.GzipEncodingProvider;
+import io.undertow.server.handlers.resource.CachingResourceManager;
 import io.undertow.server.handlers.resource.FileResourceManager;
+import io.undertow.server.handlers.resource.ResourceHandler;
 import io.undertow.util.*;
 import org.apache.lucene.document.Document;
-import org.apache.lucene.document.Field;
-import org.apache.lucene.document.StringField;
+import org.apache.lucene.queryparser.classic.ParseException;
 import songbook.song.IndexDatabase;
+import songbook.song.IndexRebuild;
+import songbook.song.IndexSettings;
+import songbook.song.IndexStats;
+import songbook.song.SearchCache;
+import songbook.song.SearchPage;
+import songbook.song.Snapshot;
+import songbook.song.SongArchive;
+import songbook.song.SongCache;
 import songbook.song.SongDatabase;
+import songbook.song.SongHistory;
+import songbook.song.SongImport;
 import songbook.song.SongUtils;
+import songbook.song.SongWatcher;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
 import java.math.BigInteger;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
 import java.util.Deque;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 
 public class Server {
@@ -49,9 +85,25 @@ public class Server {
 	public static final String MIME_TEXT_HTML = "text/html";
 	public static final String MIME_TEXT_PLAIN = "text/plain";
 	public static final String MIME_TEXT_SONG = "text/song";
+	public static final String MIME_APPLICATION_JSON = "application/json";
+
+	public static final int MAX_SUGGESTIONS = 50;
+
+	/** Prefix of search parameters filtering on a facet field, a field name alone may collide with other parameters (key). */
+	public static final String FACET_PARAMETER_PREFIX = "facet.";
+
+	/** Responses shorter than this (in bytes) aren't compressed. */
+	public static final long DEFAULT_COMPRESSION_MIN_SIZE = 1024;
+
+	/** Static files larger than this (in bytes) aren't compressed. */
+	public static final int MAX_COMPRESSED_RESOURCE_SIZE = 4 * 1024 * 1024;
 
 	public static final String SESSION_KEY = "SessionKey";
 
+	public static final HttpString LINK = new HttpString("Link");
+	public static final HttpString X_REQUESTED_WITH = new HttpString("X-Requested-With");
+	public static final HttpString X_SEARCH_TRUNCATED = new HttpString("X-Search-Truncated");
+
 	public static final AttachmentKey<String> ADMIN_KEY = AttachmentKey.create(String.class);
 
 	private Logger logger;
@@ -62,6 +114,17 @@ public class Server {
 
 	private IndexDatabase indexDb;
 
+	private SongWatcher songWatcher;
+
+	/** Content encodings (gzip and deflate) negotiated for responses above the compression threshold. */
+	private ContentEncodingRepository contentEncodings;
+
+	/** Last snapshot created from admin page, null if none. */
+	private volatile Snapshot lastSnapshot = null;
+
+	/** Last song library import, null if none. */
+	private volatile SongImport lastImport = null;
+
 	private boolean showKeyCreationAlert = false;
 
 	private String administratorKey = null;
@@ -88,7 +151,7 @@ public class Server {
 
 		try {
 			// initializes songDb
-			songDb = new SongDatabase(getSongsPath());
+			songDb = new SongDatabase(getSongsPath(), getSongPackPath(), getSongHistoryPath(), getLongEnv("SONG_CACHE_SIZE", SongDatabase.DEFAULT_CACHE_SIZE));
 		} catch (IOException e) {
 			error("Can't initialize songs database in " + getSongsPath(), e);
 		}
@@ -96,18 +159,51 @@ public class Server {
 		Path index = getDataRoot().resolve("index");
 		try {
 			// initializes index.
-			indexDb = new IndexDatabase(index, songDb);
+			indexDb = new IndexDatabase(index, songDb, getIndexSettings());
 		} catch (IOException e) {
 			error("Can't initialize index in " +index , e);
 		}
 
+		// packed songs are only changed by server
+		long watchDelay = getLongEnv("SONGS_WATCH_DELAY", SongWatcher.DEFAULT_DELAY);
+		if (watchDelay >= 0 && songDb.hasSongFiles()) {
+			try {
+				// keeps index up to date with songs changed outside of the server
+				songWatcher = new SongWatcher(songDb, indexDb, watchDelay);
+				songWatcher.start();
+			} catch (IOException e) {
+				error("Can't watch songs in " + getSongsPath(), e);
+			}
+		}
+
 		// creates server
+		contentEncodings = createContentEncodings(getLongEnv("COMPRESSION_MIN_SIZE", DEFAULT_COMPRESSION_MIN_SIZE));
 		Undertow undertow = createServer(pathTemplateHandler());
 
 		final int port = getPort();
 		final String host = getHost();
 		info("Starting server on '" + host + ":" + port + "'.");
 		undertow.start();
+
+		// watcher stops updating index before it's closed, index commits its pending changes
+		// and songs pack saves its index when closed
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+			try {
+				if (songWatcher != null) songWatcher.close();
+			} catch (IOException e) {
+				error("Can't stop watching songs", e);
+			}
+			try {
+				if (indexDb != null) indexDb.close();
+			} catch (IOException e) {
+				error("Can't close index", e);
+			}
+			try {
+				if (songDb != null) songDb.close();
+			} catch (IOException e) {
+				error("Can't close songs database", e);
+			}
+		}, "Songbook Shutdown"));
 	}
 
 	/**
@@ -116,8 +212,10 @@ public class Server {
 	 * @return
 	 */
 	protected Undertow createServer(HttpHandler next) {
+		// Sixth Handler compression
+		HttpHandler compressionHandler = compressionHandler(next);
 		// Fifth Handler Session
-		HttpHandler sessionHandler = sessionHandler(next);
+		HttpHandler sessionHandler = sessionHandler(compressionHandler);
 		// Fourth Handler crossOrigin
 		HttpHandler crossOriginHandler = allowCrossOriginHandler(sessionHandler);
 		// Third Handler exception
@@ -136,6 +234,39 @@ public class Server {
 		return builder.build();
 	}
 
+	/**
+	 * Compresses responses when client accepts it, already compressed ones (songs and static files) are sent as they are
+	 * @param next
+	 * @return
+	 */
+	protected HttpHandler compressionHandler(HttpHandler next) {
+		EncodingHandler encodingHandler = new EncodingHandler(next, contentEncodings);
+		return (exchange) -> {
+			exchange.getResponseHeaders().put(Headers.VARY, Headers.ACCEPT_ENCODING_STRING);
+			encodingHandler.handleRequest(exchange);
+		};
+	}
+
+	/** Gzip is preferred to deflate, both only for responses with a length above minSize. */
+	private static ContentEncodingRepository createContentEncodings(long minSize) {
+		// true if response Content-Length is above minSize - 1, responses without length aren't compressed
+		Predicate allowed = Predicates.maxContentSize(Math.max(0, minSize - 1));
+		return new ContentEncodingRepository()
+			.addEncodingHandler("gzip", new GzipEncodingProvider(), 100, allowed)
+			.addEncodingHandler("deflate", new DeflateEncodingProvider(), 50, allowed);
+	}
+
+	/**
+	 * Content encoding negotiated for a response of given length, sets its Content-Length.
+	 * @return the encoding name or null to send response as it is
+	 */
+	private String negotiateEncoding(HttpServerExchange exchange, long length) {
+		exchange.getResponseHeaders().put(Headers.CONTENT_LENGTH, length);
+		AllowedContentEncodings encodings = exchange.getAttachment(AllowedContentEncodings.ATTACHMENT_KEY);
+		if (encodings == null || encodings.isIdentity()) return null;
+		return encodings.getCurrentContentEncoding();
+	}
+
 	/**
 	 * Log All requests
 	 * @param next
@@ -233,8 +364,41 @@ public class Server {
 		};
 	}
 
+	/**
+	 * Empties compressed files folder, static files may have changed since they were compressed, and creates the
+	 * folders of web root in it since compressed files are written without creating their parent folder.
+	 */
+	private static void prepareEncodedRoot(Path webRoot, Path encodedRoot) throws IOException {
+		if (Files.exists(encodedRoot)) {
+			try (Stream<Path> paths = Files.walk(encodedRoot)) {
+				for (Path path : paths.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) {
+					if (path.equals(encodedRoot) == false) Files.delete(path);
+				}
+			}
+		}
+		Files.createDirectories(encodedRoot);
+		if (Files.isDirectory(webRoot) == false) return;
+		try (Stream<Path> paths = Files.walk(webRoot)) {
+			for (Path path : paths.filter(Files::isDirectory).collect(Collectors.toList())) {
+				Files.createDirectories(encodedRoot.resolve(webRoot.relativize(path).toString()));
+			}
+		}
+	}
+
 	private HttpHandler pathTemplateHandler() {
-		HttpHandler fallThrough = Handlers.resource(new FileResourceManager(getWebRoot().toFile(), 1024));
+		ResourceHandler fallThrough = Handlers.resource(new FileResourceManager(getWebRoot().toFile(), 1024));
+		// compressed static files are kept in data root (and in memory) to be compressed only once
+		File encodedRoot = getDataRoot().resolve("encoded").toFile();
+		try {
+			prepareEncodedRoot(getWebRoot(), encodedRoot.toPath());
+		} catch (IOException e) {
+			error("Can't prepare compressed files folder " + encodedRoot, e);
+		}
+		CachingResourceManager encodedCache = new CachingResourceManager(1024, MAX_COMPRESSED_RESOURCE_SIZE,
+			new DirectBufferCache(1024, 16, 16 * 1024 * 1024), new FileResourceManager(encodedRoot, 1024), -1);
+		int minSize = (int) getLongEnv("COMPRESSION_MIN_SIZE", DEFAULT_COMPRESSION_MIN_SIZE);
+		fallThrough.setContentEncodedResourceManager(new ContentEncodedResourceManager(encodedRoot, encodedCache,
+			contentEncodings, minSize, MAX_COMPRESSED_RESOURCE_SIZE, Predicates.truePredicate()));
 
 		//// To Update ////
 		PathTemplateHandler pathHandler = new PathTemplateHandler(fallThrough);
@@ -249,12 +413,16 @@ public class Server {
 		pathHandler.add("/search/{query}", this::searchPage);
 		pathHandler.add("/search", this::searchPage);
 
+		pathHandler.add("/suggest", this::suggest);
+
 		pathHandler.add("/songs/{id}", this::restSong);
+		pathHandler.add("/songs/{id}/revisions", this::songRevisions);
 
 		pathHandler.add("/consoleApi", this::consoleApiPage);
 
 		pathHandler.add("/signin", this::signinPage);
-		pathHandler.add("/admin/{section}/{command}", adminAccess(this::adminCommand));
+		// admin commands copy, check or stream songs, out of the IO thread
+		pathHandler.add("/admin/{section}/{command}", adminAccess(dispatched(this::adminCommand)));
 		pathHandler.add("/admin", adminAccess(this::adminPage));
 
 		return pathHandler;
@@ -309,48 +477,213 @@ public class Server {
 		}
 		// Serve all songs
 		String query = getParameter(exchange, "query");
+		String chords = getParameter(exchange, "chords");
 		String title = "My SongBook";
 		if (query != null && !query.isEmpty()) {
 			title = query + " - " + title;
 		}
+		if (chords != null && !chords.isEmpty()) {
+			title = chords + " - " + title;
+		}
+
+		String cursor = getParameter(exchange, "cursor");
+		int pageSize = IndexDatabase.DEFAULT_PAGE_SIZE;
+		String sizeString = getParameter(exchange, "size");
+		if (sizeString != null) {
+			try {
+				pageSize = Math.max(1, Math.min(IndexDatabase.MAX_PAGE_SIZE, Integer.parseInt(sizeString)));
+			} catch (NumberFormatException e) {
+				throw ServerException.BAD_REQUEST;
+			}
+		}
+
+		// filters on facet values
+		Map<String, String> filters = new LinkedHashMap<>();
+		for (String field : IndexDatabase.FACET_FIELDS) {
+			String value = getParameter(exchange, FACET_PARAMETER_PREFIX + field);
+			if (value != null && !value.isEmpty()) filters.put(field, value);
+		}
+
+		SearchPage page;
+		try {
+			page = indexDb.search(query, chords, filters, cursor, pageSize);
+		} catch (IllegalArgumentException | ParseException e) {
+			throw new ServerException(StatusCodes.BAD_REQUEST, e.getMessage());
+		}
+		if (page.truncated) {
+			exchange.getResponseHeaders().put(X_SEARCH_TRUNCATED, "true");
+		}
+
+		// query may come from path or parameter, links always give it as parameter
+		String nextPage = null;
+		if (page.nextCursor != null) {
+			nextPage = searchLink(query, chords, filters, page.nextCursor, pageSize);
+			exchange.getResponseHeaders().put(LINK, "<" + nextPage + ">; rel=\"next\"");
+		}
 
 		StringBuilder out = new StringBuilder();
-		String mimeType = MimeParser.bestMatch(getHeader(exchange, Headers.ACCEPT), MIME_TEXT_SONG, MIME_TEXT_PLAIN, MIME_TEXT_HTML);
+		String mimeType = MimeParser.bestMatch(getHeader(exchange, Headers.ACCEPT), MIME_TEXT_SONG, MIME_TEXT_PLAIN, MIME_TEXT_HTML, MIME_APPLICATION_JSON);
 		switch (mimeType) {
 			case MIME_TEXT_HTML:
 				exchange.getResponseHeaders().put(Headers.CONTENT_TYPE, "text/html");
 
+				if (isAskingForFragment(exchange)) {
+					// only song items for infinite scroll
+					songItems(out, page);
+					if (nextPage != null) Templates.nextSongItems(out, nextPage);
+					break;
+				}
+
 				String role = getRole(exchange);
 				Templates.header(out, title, role);
 				if (showKeyCreationAlert) {
 					Templates.alertKeyCreation(out, administratorKey, exchange.getRequestPath());
 				}
-				StringBuilder result = new StringBuilder();
-				indexDb.search(query, result, mimeType);
-				Templates.search(out,result, role);
+				if (page.truncated) {
+					Templates.alertSearchTruncated(out);
+				}
+				StringBuilder songItems = new StringBuilder();
+				Templates.startSongItems(songItems);
+				songItems(songItems, page);
+				if (nextPage != null) Templates.nextSongItems(songItems, nextPage);
+				Templates.endSongItems(songItems);
+
+				StringBuilder facets = new StringBuilder();
+				for (Map.Entry<String, Map<String, Integer>> facet : page.facets.entrySet()) {
+					if (facet.getValue().isEmpty()) continue;
+					Templates.startFacet(facets, facet.getKey());
+					for (Map.Entry<String, Integer> value : facet.getValue().entrySet()) {
+						// a value link toggles its filter
+						Map<String, String> valueFilters = new LinkedHashMap<>(filters);
+						boolean selected = value.getKey().equals(valueFilters.remove(facet.getKey()));
+						if (!selected) valueFilters.put(facet.getKey(), value.getKey());
+						String link = searchLink(query, chords, valueFilters, null, pageSize);
+						Templates.facetValue(facets, link, value.getKey(), Integer.toString(value.getValue()), selected);
+					}
+					Templates.endFacet(facets);
+				}
+				Templates.search(out, songItems, facets, role);
 
 				Templates.footer(out);
 				break;
+			case MIME_APPLICATION_JSON:
+				exchange.getResponseHeaders().put(Headers.CONTENT_TYPE, MIME_APPLICATION_JSON);
+				jsonSearchPage(out, page);
+				break;
 			default:
-				indexDb.search(query, out, mimeType);
+				for (SearchPage.Hit hit : page.hits) {
+					out.append(hit.id).append("\n");
+				}
 				break;
 		}
 		exchange.getResponseSender().send(out.toString());
 	}
 
+	private void songItems(StringBuilder out, SearchPage page) {
+		for (SearchPage.Hit hit : page.hits) {
+			Templates.songItem(out, hit.id, hit.title, String.join(", ", hit.artists));
+		}
+	}
+
+	/** Writes hits, facets and next cursor of page as a JSON object. */
+	private void jsonSearchPage(StringBuilder out, SearchPage page) {
+		out.append("{\"hits\":[");
+		for (int i = 0; i < page.hits.size(); i++) {
+			SearchPage.Hit hit = page.hits.get(i);
+			if (i > 0) out.append(",");
+			out.append("{\"id\":");
+			SongUtils.appendJsonString(out, hit.id);
+			out.append(",\"title\":");
+			SongUtils.appendJsonString(out, hit.title);
+			out.append(",\"artists\":[");
+			for (int j = 0; j < hit.artists.length; j++) {
+				if (j > 0) out.append(",");
+				SongUtils.appendJsonString(out, hit.artists[j]);
+			}
+			out.append("]}");
+		}
+		out.append("],\"total\":").append(page.totalHits);
+		out.append(",\"truncated\":").append(page.truncated);
+		out.append(",\"facets\":{");
+		boolean firstFacet = true;
+		for (Map.Entry<String, Map<String, Integer>> facet : page.facets.entrySet()) {
+			if (!firstFacet) out.append(",");
+			firstFacet = false;
+			SongUtils.appendJsonString(out, facet.getKey());
+			out.append(":[");
+			boolean firstValue = true;
+			for (Map.Entry<String, Integer> value : facet.getValue().entrySet()) {
+				if (!firstValue) out.append(",");
+				firstValue = false;
+				out.append("{\"value\":");
+				SongUtils.appendJsonString(out, value.getKey());
+				out.append(",\"count\":").append(value.getValue()).append("}");
+			}
+			out.append("]");
+		}
+		out.append("},\"next\":");
+		if (page.nextCursor == null) {
+			out.append("null");
+		} else {
+			SongUtils.appendJsonString(out, page.nextCursor);
+		}
+		out.append("}");
+	}
+
+	/** Creates link to search page, with only the non empty parameters. */
+	private String searchLink(String query, String chords, Map<String, String> filters, String cursor, int pageSize) throws UnsupportedEncodingException {
+		StringBuilder link = new StringBuilder("/search?");
+		if (query != null && !query.isEmpty()) link.append("query=").append(URLEncoder.encode(query, "UTF-8")).append("&");
+		if (chords != null && !chords.isEmpty()) link.append("chords=").append(URLEncoder.encode(chords, "UTF-8")).append("&");
+		for (Map.Entry<String, String> filter : filters.entrySet()) {
+			link.append(FACET_PARAMETER_PREFIX).append(filter.getKey()).append("=").append(URLEncoder.encode(filter.getValue(), "UTF-8")).append("&");
+		}
+		if (cursor != null) link.append("cursor=").append(cursor).append("&");
+		link.append("size=").append(pageSize);
+		return link.toString();
+	}
+
+	private void suggest(final HttpServerExchange exchange) throws Exception {
+		if (!exchange.getRequestMethod().equals(Methods.GET)) {
+			throw ServerException.METHOD_NOT_ALLOWED;
+		}
+		String text = getParameter(exchange, "q");
+		int count = 10;
+		String countString = getParameter(exchange, "count");
+		if (countString != null) {
+			try {
+				count = Math.max(1, Math.min(MAX_SUGGESTIONS, Integer.parseInt(countString)));
+			} catch (NumberFormatException e) {
+				throw ServerException.BAD_REQUEST;
+			}
+		}
+
+		// suggestions as a JSON array of strings
+		StringBuilder out = new StringBuilder("[");
+		for (String suggestion : indexDb.suggest(text, count)) {
+			if (out.length() > 1) out.append(",");
+			SongUtils.appendJsonString(out, suggestion);
+		}
+		out.append("]");
+
+		exchange.getResponseHeaders().put(Headers.CONTENT_TYPE, MIME_APPLICATION_JSON);
+		exchange.getResponseSender().send(out.toString());
+	}
+
 	private void restSong(final HttpServerExchange exchange) throws Exception {
 		switch (exchange.getRequestMethod().toString()) {
 			case Methods.GET_STRING:
 				this.getSong(exchange);
 				break;
+			// writes wait for durable songs and index commits, out of the IO thread
 			case Methods.POST_STRING:
-				adminAccess(this::createSong).handleRequest(exchange);
+				adminAccess(dispatched(this::createSong)).handleRequest(exchange);
 				break;
 			case Methods.PUT_STRING:
-				adminAccess(this::modifySong).handleRequest(exchange);
+				adminAccess(dispatched(this::modifySong)).handleRequest(exchange);
 				break;
 			case Methods.DELETE_STRING:
-				adminAccess(this::deleteSong).handleRequest(exchange);
+				adminAccess(dispatched(this::deleteSong)).handleRequest(exchange);
 				break;
 			default:
 				throw ServerException.METHOD_NOT_ALLOWED;
@@ -363,24 +696,147 @@ public class Server {
 		}
 		String id = getParameter(exchange, ("id"));
 
+		String revisionString = getParameter(exchange, "rev");
+		if (revisionString != null) {
+			getSongRevision(exchange, id, revisionString);
+			return;
+		}
+
+		if (songDb.exists(id) == false) throw new SongNotFoundException(id);
+
 		// Serves song
-		String songContents = songDb.getSongContents(id);
+		String mimeType = MimeParser.bestMatch(getHeader(exchange, Headers.ACCEPT), MIME_TEXT_SONG, MIME_TEXT_PLAIN, MIME_TEXT_HTML);
+		switch (mimeType) {
+			case MIME_TEXT_HTML:
+				String songContents = songDb.getSongContents(id);
+				if (songContents == null) throw new SongNotFoundException(id);
+				exchange.getResponseHeaders().put(Headers.CONTENT_TYPE, mimeType);
+				exchange.getResponseSender().send(htmlSong(exchange, id, songContents, exchange.getRequestPath()));
+				break;
+			default:
+			case MIME_TEXT_PLAIN:
+			case MIME_TEXT_SONG:
+				sendSongFile(exchange, id, mimeType);
+				break;
+		}
+
+		logger.info("Serve Song " + id);
+	}
+
+	/** Serves a revision of a song, which may have been deleted since. */
+	private void getSongRevision(final HttpServerExchange exchange, String id, String revisionString) throws Exception {
+		int revision;
+		try {
+			revision = Integer.parseInt(revisionString);
+		} catch (NumberFormatException e) {
+			throw ServerException.BAD_REQUEST;
+		}
+		String songContents = songDb.getRevisionContents(id, revision);
 		if (songContents == null) throw new SongNotFoundException(id);
 
 		String mimeType = MimeParser.bestMatch(getHeader(exchange, Headers.ACCEPT), MIME_TEXT_SONG, MIME_TEXT_PLAIN, MIME_TEXT_HTML);
-		exchange.getResponseHeaders().put(Headers.CONTENT_TYPE, mimeType);
 		switch (mimeType) {
 			case MIME_TEXT_HTML:
+				exchange.getResponseHeaders().put(Headers.CONTENT_TYPE, mimeType);
 				exchange.getResponseSender().send(htmlSong(exchange, id, songContents, exchange.getRequestPath()));
 				break;
 			default:
 			case MIME_TEXT_PLAIN:
 			case MIME_TEXT_SONG:
+				exchange.getResponseHeaders().put(Headers.CONTENT_TYPE, mimeType + "; charset=utf-8");
 				exchange.getResponseSender().send(songContents);
 				break;
 		}
+	}
 
-		logger.info("Serve Song " + id);
+	/** Lists revisions of a song as JSON, from the oldest. */
+	private void songRevisions(final HttpServerExchange exchange) throws Exception {
+		if (!exchange.getRequestMethod().equals(Methods.GET)) {
+			throw ServerException.METHOD_NOT_ALLOWED;
+		}
+		String id = getParameter(exchange, "id");
+		SongHistory history = songDb.getHistory();
+		List<SongHistory.Revision> revisions = history == null ? Collections.emptyList() : history.getRevisions(id);
+		if (revisions.isEmpty() && songDb.exists(id) == false) throw new SongNotFoundException(id);
+
+		StringBuilder out = new StringBuilder("{\"id\":");
+		SongUtils.appendJsonString(out, id);
+		out.append(",\"revisions\":[");
+		for (SongHistory.Revision revision : revisions) {
+			if (revision.number > 1) out.append(",");
+			out.append("{\"revision\":").append(revision.number);
+			out.append(",\"time\":").append(revision.time);
+			out.append(",\"length\":").append(revision.length);
+			out.append(",\"stored\":").append(revision.storedLength);
+			out.append(",\"keyframe\":").append(revision.keyframe);
+			out.append("}");
+		}
+		out.append("]}");
+
+		exchange.getResponseHeaders().put(Headers.CONTENT_TYPE, MIME_APPLICATION_JSON);
+		exchange.getResponseSender().send(out.toString());
+	}
+
+	/** Sends song file bytes as they are on disk (with sendfile when possible). */
+	private void sendSongFile(final HttpServerExchange exchange, String id, String mimeType) throws Exception {
+		if (!songDb.hasSongFiles()) {
+			// packed song is sent from the bytes read in pack
+			ByteBuffer bytes = songDb.getSongBytes(id);
+			if (bytes == null) throw new SongNotFoundException(id);
+			exchange.getResponseHeaders().put(Headers.CONTENT_TYPE, mimeType + "; charset=utf-8");
+			String encoding = negotiateEncoding(exchange, bytes.remaining());
+			if (encoding != null) {
+				sendEncodedSong(exchange, id, encoding);
+				return;
+			}
+			exchange.getResponseSender().send(bytes);
+			return;
+		}
+		FileChannel file = songDb.openSongFile(id);
+		if (file == null) throw new SongNotFoundException(id);
+		try {
+			exchange.getResponseHeaders().put(Headers.CONTENT_TYPE, mimeType + "; charset=utf-8");
+			String encoding = negotiateEncoding(exchange, file.size());
+			if (encoding != null) {
+				file.close();
+				sendEncodedSong(exchange, id, encoding);
+				return;
+			}
+		} catch (IOException e) {
+			file.close();
+			throw e;
+		}
+		exchange.getResponseSender().transferFrom(file, new IoCallback() {
+			@Override
+			public void onComplete(HttpServerExchange exchange, Sender sender) {
+				closeQuietly(file);
+				exchange.endExchange();
+			}
+
+			@Override
+			public void onException(HttpServerExchange exchange, Sender sender, IOException exception) {
+				closeQuietly(file);
+				error("Can't send song '" + id + "'", exception);
+				exchange.endExchange();
+			}
+		});
+	}
+
+	/** Sends song compressed with encoding, compressed bytes are cached by songDb. */
+	private void sendEncodedSong(final HttpServerExchange exchange, String id, String encoding) throws Exception {
+		byte[] encoded = songDb.getEncodedSong(id, encoding);
+		if (encoded == null) throw new SongNotFoundException(id);
+		exchange.getResponseHeaders().put(Headers.CONTENT_ENCODING, encoding);
+		exchange.getResponseHeaders().put(Headers.CONTENT_LENGTH, encoded.length);
+		exchange.getResponseSender().send(ByteBuffer.wrap(encoded));
+	}
+
+	private void closeQuietly(FileChannel channel) {
+		try {
+			channel.close();
+		} catch (IOException e) {
+			// nothing to do
+		}
 	}
 
 	private String htmlSong(HttpServerExchange exchange, String id, String songData, String path) {
@@ -397,7 +853,8 @@ public class Server {
 	}
 
 	private void createSong(final HttpServerExchange exchange) throws Exception {
-		String songData = ChannelUtil.getStringContents(exchange.getRequestChannel());
+		exchange.startBlocking();
+		String songData = ChannelUtil.getStringContents(Channels.newChannel(exchange.getInputStream()));
 
 		// indexes updated song
 		Document document = SongUtils.indexSong(songData);
@@ -409,38 +866,37 @@ public class Server {
 		}
 
 		String id = songDb.generateId(title, artist);
-		// prepares new document
-		document.add(new StringField("id", id, Field.Store.YES));
-		indexDb.addOrUpdateDocument(document);
 
 		WritableByteChannel songChannel = songDb.writeChannelForSong(id);
 		if (songChannel == null) throw new ServerException(500, "Can't write song");
 
+		// song is durable once channel is closed, so the index only points to complete songs
 		ChannelUtil.writeStringContents(songData, songChannel);
 
+		// indexes written song (with its modification time), waits for the commit shared with concurrent writes
+		indexDb.addOrUpdateSong(id, songData).get();
+
 		exchange.getResponseSender().send(id);
 	}
 
 	private void modifySong(final HttpServerExchange exchange) throws Exception {
-		String songData = ChannelUtil.getStringContents(exchange.getRequestChannel());
-
-		// indexes updated song
-		Document document = SongUtils.indexSong(songData);
+		exchange.startBlocking();
+		String songData = ChannelUtil.getStringContents(Channels.newChannel(exchange.getInputStream()));
 
 		String id = getParameter(exchange, ("id"));
 
 		// Verify that song exists
 		if (songDb.exists(id) == false) throw ServerException.NOT_FOUND;
 
-		// prepares new document
-		document.add(new StringField("id", id, Field.Store.YES));
-		indexDb.addOrUpdateDocument(document);
-
 		WritableByteChannel songChannel = songDb.writeChannelForSong(id);
 		if (songChannel == null) throw new ServerException(500, "Can't write song");
 
+		// song is durable once channel is closed, so the index only points to complete songs
 		ChannelUtil.writeStringContents(songData, songChannel);
 
+		// indexes updated song (with its modification time), waits for the commit shared with concurrent writes
+		indexDb.addOrUpdateSong(id, songData).get();
+
 		exchange.getResponseSender().send(id);
 	}
 
@@ -453,13 +909,13 @@ public class Server {
 		// Verify that song exists
 		if (songDb.exists(id) == false) throw ServerException.NOT_FOUND;
 
-		// removes file
-		songDb.delete(id);
-
 		String title = indexDb.getTitle(id);
 
-		// removes document from index
-		indexDb.removeDocument(id);
+		// removes document from index before the file, the index never points to a missing song
+		indexDb.removeDocument(id).get();
+
+		// removes file, returns once removal is durable
+		songDb.delete(id);
 
 		String mimeType = MimeParser.bestMatch(getHeader(exchange, Headers.ACCEPT), MIME_TEXT_SONG, MIME_TEXT_PLAIN, MIME_TEXT_HTML);
 		exchange.getResponseHeaders().put(Headers.CONTENT_TYPE, mimeType);
@@ -512,7 +968,7 @@ public class Server {
 		}
 		StringBuilder out = new StringBuilder();
 		Templates.header(out, "SongBook Admin Page", getRole(exchange));
-		Templates.admin(out);
+		Templates.admin(out, adminStatistics());
 		Templates.footer(out);
 
 		exchange.getResponseHeaders().put(Headers.CONTENT_TYPE, MIME_TEXT_HTML);
@@ -520,9 +976,25 @@ public class Server {
 	}
 
 	private void adminCommand(final HttpServerExchange exchange) throws Exception {
+		boolean library = "library".equals(getParameter(exchange, "section"));
+		if (library && "import".equals(getParameter(exchange, "command"))) {
+			if (!exchange.getRequestMethod().equals(Methods.POST)) {
+				throw ServerException.METHOD_NOT_ALLOWED;
+			}
+			importLibrary(exchange);
+			return;
+		}
 		if (!exchange.getRequestMethod().equals(Methods.GET)) {
 			throw ServerException.METHOD_NOT_ALLOWED;
 		}
+		if ("backup".equals(getParameter(exchange, "section")) && "zip".equals(getParameter(exchange, "command"))) {
+			backupZip(exchange);
+			return;
+		}
+		if (library && "export".equals(getParameter(exchange, "command"))) {
+			exportLibrary(exchange);
+			return;
+		}
 		StringBuilder out = new StringBuilder();
 
 		Templates.header(out, "Administration - My SongBook", getRole(exchange));
@@ -533,24 +1005,82 @@ public class Server {
 			case "index":
 				switch (command) {
 					case "reset":
+						// index is rebuilt in background, progress is shown in statistics
+						songDb.reload();
+						indexDb.rebuild();
+						Templates.alertSongReindexing(out);
+						Templates.admin(out, adminStatistics());
+						break;
+					case "merge":
+						int segments = 1;
+						String segmentsString = getParameter(exchange, "segments");
+						if (segmentsString != null) {
+							try {
+								segments = Math.max(1, Integer.parseInt(segmentsString));
+							} catch (NumberFormatException e) {
+								throw ServerException.BAD_REQUEST;
+							}
+						}
+						indexDb.forceMerge(segments);
+						Templates.alertIndexMaintenance(out);
+						Templates.admin(out, adminStatistics());
+						break;
+					case "expunge":
+						indexDb.expungeDeletes();
+						Templates.alertIndexMaintenance(out);
+						Templates.admin(out, adminStatistics());
+						break;
+					default:
+						Templates.alertCommandNotSupported(out);
+						Templates.admin(out, adminStatistics());
+						break;
+				}
+				break;
+			case "songs":
+				switch (command) {
+					case "export":
+						try {
+							int count = songDb.exportSongs();
+							Templates.alertSongsExported(out, Integer.toString(count), getSongsPath().toString());
+						} catch (IOException e) {
+							error("Can't export songs to " + getSongsPath(), e);
+							Templates.alertSongsExportError(out);
+						}
+						Templates.admin(out, adminStatistics());
+						break;
+					case "check":
+						try {
+							// index is synchronized with the fixed catalog
+							int count = songDb.checkCatalog();
+							if (count > 0) indexDb.synchronizeSongs();
+							Templates.alertCatalogChecked(out, Integer.toString(count));
+						} catch (IOException e) {
+							error("Can't check song catalog", e);
+							Templates.alertCatalogCheckError(out);
+						}
+						Templates.admin(out, adminStatistics());
+						break;
+					default:
+						Templates.alertCommandNotSupported(out);
+						Templates.admin(out, adminStatistics());
+						break;
+				}
+				break;
+			case "backup":
+				switch (command) {
+					case "snapshot":
 						try {
-							long start = System.currentTimeMillis();
-							songDb.clearCache();
-							indexDb.analyzeSongs();
-
-							long end = System.currentTimeMillis();
-							logger.info("Opened index in " + (end - start) + " milliseconds.");
-							Templates.alertSongReindexed(out);
-							Templates.admin(out);
+							lastSnapshot = Snapshot.create(indexDb, songDb, getSnapshotsPath());
+							Templates.alertSnapshotCreated(out, lastSnapshot.folder.toString());
 						} catch (IOException e) {
-							error("Can't initialize index in " + getDataRoot().resolve("index"), e);
-							Templates.alertIndexingError(out);
-							Templates.admin(out);
+							error("Can't create snapshot in " + getSnapshotsPath(), e);
+							Templates.alertSnapshotError(out);
 						}
+						Templates.admin(out, adminStatistics());
 						break;
 					default:
 						Templates.alertCommandNotSupported(out);
-						Templates.admin(out);
+						Templates.admin(out, adminStatistics());
 						break;
 				}
 				break;
@@ -564,6 +1094,126 @@ public class Server {
 		exchange.getResponseSender().send(out.toString());
 	}
 
+	/** Streams a zip of a consistent snapshot of index and songs. */
+	private void backupZip(final HttpServerExchange exchange) {
+		exchange.startBlocking();
+		exchange.getResponseHeaders().put(Headers.CONTENT_TYPE, "application/zip");
+		exchange.getResponseHeaders().put(Headers.CONTENT_DISPOSITION, "attachment; filename=\"songbook-backup.zip\"");
+		try {
+			Snapshot.zip(indexDb, songDb, exchange.getOutputStream());
+		} catch (IOException e) {
+			// response is already started, it can only be cut
+			error("Can't write backup", e);
+		}
+		exchange.endExchange();
+	}
+
+	/** Streams a zip archive with the manifest and all songs, to be imported in another server. */
+	private void exportLibrary(final HttpServerExchange exchange) {
+		exchange.startBlocking();
+		exchange.getResponseHeaders().put(Headers.CONTENT_TYPE, "application/zip");
+		exchange.getResponseHeaders().put(Headers.CONTENT_DISPOSITION, "attachment; filename=\"songbook-library.zip\"");
+		try {
+			SongArchive.exportSongs(songDb, exchange.getOutputStream());
+		} catch (IOException e) {
+			// response is already started, it can only be cut
+			error("Can't write library archive", e);
+		}
+		exchange.endExchange();
+	}
+
+	/**
+	 * Imports songs from a zip archive sent as request body. Progress is streamed as text lines while songs
+	 * are imported, the last line is the result.
+	 */
+	private void importLibrary(final HttpServerExchange exchange) throws ServerException {
+		SongImport progress = new SongImport();
+		synchronized (this) {
+			// imports one archive at a time
+			if (lastImport != null && lastImport.isRunning()) {
+				throw new ServerException(StatusCodes.CONFLICT, "an import is running");
+			}
+			lastImport = progress;
+		}
+		exchange.startBlocking();
+		exchange.getResponseHeaders().put(Headers.CONTENT_TYPE, MIME_TEXT_PLAIN + "; charset=utf-8");
+		OutputStream out = exchange.getOutputStream();
+		long[] lastReport = { 0 };
+		Runnable report = () -> {
+			long now = System.currentTimeMillis();
+			if (progress.isRunning() && now - lastReport[0] < 1000) return;
+			lastReport[0] = now;
+			try {
+				out.write((progress.toString() + "\n").getBytes(StandardCharsets.UTF_8));
+				out.flush();
+			} catch (IOException e) {
+				// client left, import continues
+			}
+		};
+		try {
+			SongArchive.importSongs(exchange.getInputStream(), songDb, indexDb, progress, report);
+		} catch (IOException e) {
+			// failure is reported in last line
+			error("Can't import library archive", e);
+		} finally {
+			exchange.endExchange();
+		}
+	}
+
+	/** Creates statistics rows shown in admin page. */
+	private String adminStatistics() {
+		StringBuilder out = new StringBuilder();
+		try {
+			IndexStats stats = indexDb.getStats();
+			Templates.statistic(out, "Index segments", Integer.toString(stats.segments));
+			Templates.statistic(out, "Index documents", Integer.toString(stats.documents));
+			Templates.statistic(out, "Index deleted documents", stats.deletedDocuments + String.format(" (%.1f %%)", stats.getDeletedRatio() * 100));
+			Templates.statistic(out, "Index size", String.format("%.1f KB", stats.sizeOnDisk / 1024.0));
+			Templates.statistic(out, "Index last commit", stats.lastCommit == 0 ? "none since start" : new Date(stats.lastCommit).toString());
+		} catch (IOException e) {
+			error("Can't read index statistics", e);
+		}
+		String mergeStatus = indexDb.getMergeStatus();
+		if (mergeStatus != null) {
+			Templates.statistic(out, "Index merge", mergeStatus);
+		}
+		IndexRebuild rebuild = indexDb.getRebuild();
+		if (rebuild != null) {
+			Templates.statistic(out, "Index rebuild", rebuild.toString());
+		}
+		Snapshot snapshot = lastSnapshot;
+		if (snapshot != null) {
+			Templates.statistic(out, "Last snapshot", snapshot.folder.getFileName() + ": " + snapshot.copied +
+				" files copied (" + snapshot.copiedBytes + " bytes), " + snapshot.linked + " linked in " + snapshot.time + " ms");
+		}
+		SongHistory history = songDb.getHistory();
+		if (history != null) {
+			try {
+				Templates.statistic(out, "Song history size", String.format("%.1f KB", history.getStoredBytes() / 1024.0));
+			} catch (IOException e) {
+				error("Can't read song history size", e);
+			}
+		}
+		Templates.statistic(out, "Song catalog", songDb.getCatalog().size() + " songs");
+		SongImport songImport = lastImport;
+		if (songImport != null) {
+			Templates.statistic(out, "Last library import", songImport.toString());
+		}
+		SongCache songCache = songDb.getCache();
+		Templates.statistic(out, "Song cache size", songCache.getCount() + " songs, " + songCache.getBytes() / 1024 + " / " + songCache.getMaxBytes() / 1024 + " KB");
+		Templates.statistic(out, "Song cache hits", songCache.getHits() + String.format(" (%.1f %%)", songCache.getHitRate() * 100));
+		Templates.statistic(out, "Song cache misses", Long.toString(songCache.getMisses()));
+		Templates.statistic(out, "Compressed song cache hits", songCache.getEncodedHits() + String.format(" (%.1f %%)", songCache.getEncodedHitRate() * 100));
+		Templates.statistic(out, "Compressed song cache misses", Long.toString(songCache.getEncodedMisses()));
+		Templates.statistic(out, "Song cache evictions", Long.toString(songCache.getEvictions()));
+		SearchCache searchCache = indexDb.getSearchCache();
+		Templates.statistic(out, "Search cache entries", searchCache.getCount() + " / " + searchCache.getSize());
+		Templates.statistic(out, "Search cache hits", Long.toString(searchCache.getHits()));
+		Templates.statistic(out, "Search cache misses", Long.toString(searchCache.getMisses()));
+		Templates.statistic(out, "Search cache evictions", Long.toString(searchCache.getEvictions()));
+		return out.toString();
+	}
+
 	private Path getWebRoot() {
 		final String webRoot = System.getenv("WEB_ROOT");
 		return Paths.get(webRoot == null ? DEFAULT_WEB_ROOT : webRoot);
@@ -579,6 +1229,25 @@ public class Server {
 		return songRoot == null ? getDataRoot().resolve("songs") : Paths.get(songRoot);
 	}
 
+	/** Folder of songs pack when SONG_STORE is 'packed', null when songs are stored as files. */
+	private Path getSongPackPath() {
+		if ("packed".equals(System.getenv("SONG_STORE")) == false) return null;
+		final String packRoot = System.getenv("SONG_PACK_ROOT");
+		return packRoot == null ? getDataRoot().resolve("pack") : Paths.get(packRoot);
+	}
+
+	/** Folder of song revisions, null when SONG_HISTORY is 'off'. */
+	private Path getSongHistoryPath() {
+		if ("off".equals(System.getenv("SONG_HISTORY"))) return null;
+		final String historyRoot = System.getenv("SONG_HISTORY_ROOT");
+		return historyRoot == null ? getDataRoot().resolve("history") : Paths.get(historyRoot);
+	}
+
+	private Path getSnapshotsPath() {
+		final String snapshotsRoot = System.getenv("SNAPSHOTS_ROOT");
+		return snapshotsRoot == null ? getDataRoot().resolve("snapshots") : Paths.get(snapshotsRoot);
+	}
+
 	private int getPort() {
 		final String portString = System.getenv("PORT");
 		int port = DEFAULT_PORT;
@@ -592,6 +1261,40 @@ public class Server {
 		return port;
 	}
 
+	/** Reads index settings from environment. */
+	private IndexSettings getIndexSettings() {
+		IndexSettings settings = new IndexSettings();
+		final String directory = System.getenv("INDEX_DIRECTORY");
+		if (directory != null) settings.directory = directory;
+		settings.maxStaleness = getLongEnv("INDEX_MAX_STALENESS", settings.maxStaleness);
+		settings.commitDelay = getLongEnv("INDEX_COMMIT_DELAY", settings.commitDelay);
+		settings.commitMaxChanges = (int) getLongEnv("INDEX_COMMIT_MAX_CHANGES", settings.commitMaxChanges);
+		settings.searchCacheSize = (int) getLongEnv("SEARCH_CACHE_SIZE", settings.searchCacheSize);
+		settings.suggestDelay = getLongEnv("SUGGEST_DELAY", settings.suggestDelay);
+		final String mergePolicy = System.getenv("INDEX_MERGE_POLICY");
+		if (mergePolicy != null) settings.mergePolicy = mergePolicy;
+		settings.mergeFactor = (int) getLongEnv("INDEX_MERGE_FACTOR", settings.mergeFactor);
+		settings.maxMergedSegmentMB = getLongEnv("INDEX_MAX_MERGED_SEGMENT_MB", (long) settings.maxMergedSegmentMB);
+		settings.searchTimeout = getLongEnv("SEARCH_TIMEOUT", settings.searchTimeout);
+		settings.maxQueryClauses = (int) getLongEnv("SEARCH_MAX_CLAUSES", settings.maxQueryClauses);
+		settings.maxQueryExpansions = (int) getLongEnv("SEARCH_MAX_EXPANSIONS", settings.maxQueryExpansions);
+		return settings;
+	}
+
+	/** Reads a numeric setting from environment, returns defaultValue if absent or invalid. */
+	private long getLongEnv(String name, long defaultValue) {
+		final String valueString = System.getenv(name);
+		long value = defaultValue;
+		if (valueString != null) {
+			try {
+				value = Long.parseLong(valueString);
+			} catch (NumberFormatException e) {
+				// doesn't matter;
+			}
+		}
+		return value;
+	}
+
 	private String getHost() {
 		String host = System.getenv("HOST");
 		if (host == null) host = System.getenv("HOSTNAME");
@@ -698,6 +1401,11 @@ public class Server {
 		return values != null && values.getFirst().contains("application/json");
 	}
 
+	/** Checks if request comes from a script that only needs a page fragment. */
+	protected boolean isAskingForFragment(HttpServerExchange exchange) {
+		return "XMLHttpRequest".equals(getHeader(exchange, X_REQUESTED_WITH));
+	}
+
 	protected String createMessage(String message, boolean json) {
 		return json ? "{ \"message\": \"" + message + "\"}" : message;
 	}
@@ -723,6 +1431,21 @@ public class Server {
 		};
 	}
 
+	/**
+	 * Runs handler in a worker thread, for handlers blocking on writes or commits. Its exceptions are handled
+	 * there since the dispatched exchange leaves the handlers chain.
+	 */
+	private HttpHandler dispatched(HttpHandler handler) {
+		HttpHandler worker = exceptionHandler(handler);
+		return exchange -> {
+			if (exchange.isInIoThread()) {
+				exchange.dispatch(worker);
+			} else {
+				handler.handleRequest(exchange);
+			}
+		};
+	}
+
 	private HttpHandler methodFilterHandler(HttpHandler handler, HttpString method, HttpHandler next) {
 		return exchange -> {
 			if (method.equals(exchange.getRequestMethod())) {
@@ -32,8 +32,8 @@ public class Templates {
         return print(out, "footer.html");
 	}
 
-    public static <A extends Appendable> A search(A out, CharSequence searchResult, CharSequence role) {
-        return print(out, "search.html", "searchResult", searchResult, "role", role);
+    public static <A extends Appendable> A search(A out, CharSequence searchResult, CharSequence facets, CharSequence role) {
+        return print(out, "search.html", "searchResult", searchResult, "facets", facets, "role", role);
     }
 
     public static <A extends Appendable> A editSong(A out, CharSequence songId, CharSequence song, CharSequence role) {
@@ -56,16 +56,36 @@ public class Templates {
         return print(out, "songItem.html", "songId", songId, "songTitle", songTitle, "songArtist", songArtist);
 	}
 
+    public static <A extends Appendable> A nextSongItems(A out, CharSequence nextPage) {
+        return print(out, "nextSongItems.html", "nextPage", nextPage);
+    }
+
     public static <A extends Appendable> A endSongItems(A out) {
         return print(out, "endSongItems.html");
 	}
 
+    public static <A extends Appendable> A startFacet(A out, CharSequence facetName) {
+        return print(out, "startFacet.html", "facetName", facetName);
+    }
+
+    public static <A extends Appendable> A facetValue(A out, CharSequence link, CharSequence value, CharSequence count, boolean selected) {
+        return print(out, "facetValue.html", "link", link, "value", value, "count", count, "selected", selected ? "list-group-item-info" : "");
+    }
+
+    public static <A extends Appendable> A endFacet(A out) {
+        return print(out, "endFacet.html");
+    }
+
     public static <A extends Appendable> A signin(A out) {
         return print(out, "signin.html");
     }
 
-    public static <A extends Appendable> A admin(A out) {
-        return print(out, "admin.html");
+    public static <A extends Appendable> A admin(A out, CharSequence statistics) {
+        return print(out, "admin.html", "statistics", statistics);
+    }
+
+    public static <A extends Appendable> A statistic(A out, CharSequence name, CharSequence value) {
+        return print(out, "statistic.html", "name", name, "value", value);
     }
 
     public static <A extends Appendable> A consoleApi(A out) {
@@ -92,6 +112,38 @@ public class Templates {
         return print(out, "alerts/accessForbidden.html", "path", path);
     }
 
+    public static <A extends Appendable> A alertSongReindexing(A out) {
+        return print(out, "alerts/songReindexing.html");
+    }
+
+    public static <A extends Appendable> A alertSnapshotCreated(A out, CharSequence folder) {
+        return print(out, "alerts/snapshotCreated.html", "folder", folder);
+    }
+
+    public static <A extends Appendable> A alertSnapshotError(A out) {
+        return print(out, "alerts/snapshotError.html");
+    }
+
+    public static <A extends Appendable> A alertIndexMaintenance(A out) {
+        return print(out, "alerts/indexMaintenance.html");
+    }
+
+    public static <A extends Appendable> A alertSongsExported(A out, CharSequence count, CharSequence folder) {
+        return print(out, "alerts/songsExported.html", "count", count, "folder", folder);
+    }
+
+    public static <A extends Appendable> A alertSongsExportError(A out) {
+        return print(out, "alerts/songsExportError.html");
+    }
+
+    public static <A extends Appendable> A alertCatalogChecked(A out, CharSequence count) {
+        return print(out, "alerts/catalogChecked.html", "count", count);
+    }
+
+    public static <A extends Appendable> A alertCatalogCheckError(A out) {
+        return print(out, "alerts/catalogCheckError.html");
+    }
+
     public static <A extends Appendable> A alertIndexingError(A out) {
         return print(out, "alerts/indexingError.html");
     }
@@ -100,6 +152,10 @@ public class Templates {
         return print(out, "alerts/commandNotSupported.html");
     }
 
+    public static <A extends Appendable> A alertSearchTruncated(A out) {
+        return print(out, "alerts/searchTruncated.html");
+    }
+
     public static <A extends Appendable> A alertSongRemovedSuccessfully(A out, CharSequence songTitle) {
         return print(out, "alerts/songRemovedSuccessfully.html", "songTitle", songTitle);
     }
@@ -0,0 +1,177 @@
+package songbook.song;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Stores each song in its own <code>id.song</code> file of a directory.
+ * <p>
+ * Songs are written in a hidden temporary file renamed over the song file once synced, a crash never leaves a
+ * partial song. Concurrent writes share the syncs, see {@link DirectorySyncer}.
+ */
+class DirectorySongStore implements SongStore {
+
+    private static final String TEMPORARY_EXTENSION = ".tmp";
+
+    private final Logger logger = Logger.getLogger("Songbook");
+
+    private final Path songDir;
+
+    private final DirectorySyncer syncer;
+
+    /** Makes temporary file names unique. */
+    private final AtomicLong temporaryCounter = new AtomicLong();
+
+    DirectorySongStore(Path songDir) throws IOException {
+        this.songDir = songDir;
+        this.syncer = new DirectorySyncer(songDir);
+
+        if (Files.exists(songDir) == false) {
+            Files.createDirectories(songDir);
+        }
+
+        // removes writes interrupted by a crash
+        try (Stream<Path> paths = Files.list(songDir)) {
+            for (Path path : paths.filter(DirectorySongStore::isTemporary).collect(Collectors.toList())) {
+                logger.warning("Removes interrupted song write '" + path.getFileName() + "'.");
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+
+    private static boolean isTemporary(Path path) {
+        String name = path.getFileName().toString();
+        return name.startsWith(".") && name.endsWith(TEMPORARY_EXTENSION);
+    }
+
+    @Override
+    public Path getFolder() {
+        return songDir;
+    }
+
+    @Override
+    public boolean hasSongFiles() {
+        return true;
+    }
+
+    @Override
+    public Stream<String> listIds() throws IOException {
+        // only song files, without interrupted writes
+        return Files.list(songDir)
+            .filter(path -> isTemporary(path) == false)
+            .filter(path -> path.getFileName().toString().endsWith(SongDatabase.SONG_EXTENSION))
+            .filter(Files::isRegularFile)
+            .map(SongDatabase::extractId);
+    }
+
+    @Override
+    public boolean exists(String id) {
+        return Files.exists(getSongPath(id));
+    }
+
+    @Override
+    public long getLastModified(String id) throws IOException {
+        return Files.getLastModifiedTime(getSongPath(id)).toMillis();
+    }
+
+    @Override
+    public long getSize(String id) throws IOException {
+        return Files.size(getSongPath(id));
+    }
+
+    @Override
+    public ReadableByteChannel read(String id) throws IOException {
+        return Files.newByteChannel(getSongPath(id));
+    }
+
+    @Override
+    public ByteBuffer readBytes(String id) throws IOException {
+        return ByteBuffer.wrap(Files.readAllBytes(getSongPath(id)));
+    }
+
+    @Override
+    public Optional<Path> getFile(String id) {
+        return Optional.of(getSongPath(id));
+    }
+
+    @Override
+    public WritableByteChannel write(String id) throws IOException {
+        Path path = getSongPath(id);
+        if (Files.exists(path) == false) {
+            Files.createDirectories(path.getParent());
+        }
+        Path temporary = songDir.resolve("." + id + SongDatabase.SONG_EXTENSION + "." + temporaryCounter.incrementAndGet() + TEMPORARY_EXTENSION);
+        FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        return new WritableByteChannel() {
+            /** True if a write failed, the temporary file is then dropped on close. */
+            private boolean failed = false;
+
+            @Override
+            public int write(ByteBuffer src) throws IOException {
+                try {
+                    return channel.write(src);
+                } catch (IOException | RuntimeException e) {
+                    failed = true;
+                    throw e;
+                }
+            }
+
+            @Override
+            public boolean isOpen() {
+                return channel.isOpen();
+            }
+
+            @Override
+            public void close() throws IOException {
+                if (channel.isOpen() == false) return;
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    failed = true;
+                    throw e;
+                } finally {
+                    if (failed) Files.deleteIfExists(temporary);
+                }
+                // returns once the song is durable, with the syncs of concurrent writes
+                join(syncer.replace(temporary, path));
+            }
+        };
+    }
+
+    @Override
+    public void delete(String id) throws IOException {
+        Files.delete(getSongPath(id));
+        join(syncer.sync());
+    }
+
+    @Override
+    public void close() {
+        syncer.close();
+    }
+
+    private static void join(CompletableFuture<Void> future) throws IOException {
+        try {
+            future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+            throw e;
+        }
+    }
+
+    private Path getSongPath(String id) {
+        return songDir.resolve(id + SongDatabase.SONG_EXTENSION);
+    }
+}
@@ -0,0 +1,139 @@
+package songbook.song;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Makes file replacements in a directory durable, in groups.
+ * <p>
+ * A replacement is a complete temporary file renamed over its target: its contents are synced before the
+ * rename, so a crash leaves either the old or the new file, never a partial one. Replacements asked while a
+ * group is synced wait for the next one, a group syncs its files, renames them and then syncs the directory
+ * once for all.
+ */
+class DirectorySyncer {
+
+    private static class Replacement {
+        final Path temporary;
+        final Path target;
+        final CompletableFuture<Void> future = new CompletableFuture<>();
+
+        Replacement(Path temporary, Path target) {
+            this.temporary = temporary;
+            this.target = target;
+        }
+    }
+
+    private final Logger logger = Logger.getLogger("Songbook");
+
+    private final Path directory;
+
+    /** Groups are synced on a single thread, one after the other. */
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "Songbook Song Syncer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /** Replacements waiting for the next group, guarded by this. */
+    private List<Replacement> pending = new ArrayList<>();
+
+    /** True if directory can't be synced on this system, no need to try again. */
+    private volatile boolean directorySyncUnsupported = false;
+
+    DirectorySyncer(Path directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Renames temporary file over target once its contents are durable.
+     * @return a future completed when the rename is durable.
+     */
+    CompletableFuture<Void> replace(Path temporary, Path target) {
+        return submit(new Replacement(temporary, target));
+    }
+
+    /**
+     * Syncs directory, for instance after a file deletion.
+     * @return a future completed when directory changes done before are durable.
+     */
+    CompletableFuture<Void> sync() {
+        return submit(new Replacement(null, null));
+    }
+
+    void close() {
+        executor.shutdown();
+    }
+
+    private synchronized CompletableFuture<Void> submit(Replacement replacement) {
+        pending.add(replacement);
+        // the first one of a group starts it, the other ones join it
+        if (pending.size() == 1) executor.execute(this::syncGroup);
+        return replacement.future;
+    }
+
+    private void syncGroup() {
+        List<Replacement> group;
+        synchronized (this) {
+            group = pending;
+            pending = new ArrayList<>();
+        }
+
+        List<Replacement> renamed = new ArrayList<>();
+        for (Replacement replacement : group) {
+            if (replacement.temporary == null) {
+                renamed.add(replacement);
+                continue;
+            }
+            try {
+                try (FileChannel channel = FileChannel.open(replacement.temporary, StandardOpenOption.WRITE)) {
+                    channel.force(true);
+                }
+                Files.move(replacement.temporary, replacement.target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                renamed.add(replacement);
+            } catch (IOException | RuntimeException e) {
+                replacement.future.completeExceptionally(e);
+                deleteQuietly(replacement.temporary);
+            }
+        }
+
+        try {
+            syncDirectory();
+            renamed.forEach(replacement -> replacement.future.complete(null));
+        } catch (IOException | RuntimeException e) {
+            logger.log(Level.SEVERE, "Can't sync directory '" + directory + "'", e);
+            renamed.forEach(replacement -> replacement.future.completeExceptionally(e));
+        }
+    }
+
+    private void syncDirectory() throws IOException {
+        if (directorySyncUnsupported) return;
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // some systems (Windows) can't open a directory
+            if (Files.isDirectory(directory) == false) throw e;
+            logger.log(Level.INFO, "Directory '" + directory + "' can't be synced, only files are.", e);
+            directorySyncUnsupported = true;
+        }
+    }
+
+    private void deleteQuietly(Path path) {
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Can't delete '" + path + "'", e);
+        }
+    }
+}
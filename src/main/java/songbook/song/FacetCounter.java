@@ -0,0 +1,110 @@
+package songbook.song;
+
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.DocValues;
+import org.apache.lucene.index.SortedDocValues;
+import org.apache.lucene.index.SortedSetDocValues;
+import org.apache.lucene.search.Collector;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.util.BytesRef;
+
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Counts values of doc values fields for all collected documents. It's used with the hits collector so
+ * that counts are computed in the same pass over matching documents.
+ * <p>
+ * Counts are kept by ordinal for the current segment and converted to values when moving to the next one.
+ */
+class FacetCounter extends Collector {
+
+    private final String[] fields;
+
+    private final List<Map<String, Integer>> counts = new ArrayList<>();
+
+    private final SortedSetDocValues[] values;
+
+    private final int[][] segmentCounts;
+
+    FacetCounter(String... fields) {
+        this.fields = fields;
+        this.values = new SortedSetDocValues[fields.length];
+        this.segmentCounts = new int[fields.length][];
+        for (int i = 0; i < fields.length; i++) {
+            counts.add(new HashMap<>());
+        }
+    }
+
+    @Override
+    public void setScorer(Scorer scorer) {
+    }
+
+    @Override
+    public void collect(int doc) {
+        for (int i = 0; i < fields.length; i++) {
+            SortedSetDocValues fieldValues = values[i];
+            if (fieldValues == null) continue;
+            fieldValues.setDocument(doc);
+            for (long ord = fieldValues.nextOrd(); ord != SortedSetDocValues.NO_MORE_ORDS; ord = fieldValues.nextOrd()) {
+                segmentCounts[i][(int) ord] += 1;
+            }
+        }
+    }
+
+    @Override
+    public void setNextReader(AtomicReaderContext context) throws IOException {
+        flushSegment();
+        AtomicReader reader = context.reader();
+        for (int i = 0; i < fields.length; i++) {
+            SortedSetDocValues fieldValues = reader.getSortedSetDocValues(fields[i]);
+            if (fieldValues == null) {
+                SortedDocValues singleValues = reader.getSortedDocValues(fields[i]);
+                fieldValues = singleValues == null ? null : DocValues.singleton(singleValues);
+            }
+            values[i] = fieldValues;
+            segmentCounts[i] = fieldValues == null ? null : new int[(int) fieldValues.getValueCount()];
+        }
+    }
+
+    @Override
+    public boolean acceptsDocsOutOfOrder() {
+        return true;
+    }
+
+    /**
+     * Gets the values with the highest counts for each field.
+     * @return for each field, a map of values to counts ordered by decreasing count.
+     */
+    Map<String, Map<String, Integer>> top(int count) {
+        flushSegment();
+        Map<String, Map<String, Integer>> result = new LinkedHashMap<>();
+        for (int i = 0; i < fields.length; i++) {
+            Map<String, Integer> top = new LinkedHashMap<>();
+            counts.get(i).entrySet().stream()
+                .sorted(Map.Entry.<String, Integer>comparingByValue().reversed().thenComparing(Map.Entry.comparingByKey()))
+                .limit(count)
+                .forEach(entry -> top.put(entry.getKey(), entry.getValue()));
+            result.put(fields[i], top);
+        }
+        return result;
+    }
+
+    /** Adds counts of current segment to values counts. */
+    private void flushSegment() {
+        BytesRef bytes = new BytesRef();
+        for (int i = 0; i < fields.length; i++) {
+            if (values[i] == null) continue;
+            int[] ordCounts = segmentCounts[i];
+            for (int ord = 0; ord < ordCounts.length; ord++) {
+                if (ordCounts[ord] > 0) {
+                    values[i].lookupOrd(ord, bytes);
+                    counts.get(i).merge(bytes.utf8ToString(), ordCounts[ord], Integer::sum);
+                }
+            }
+            values[i] = null;
+            segmentCounts[i] = null;
+        }
+    }
+}
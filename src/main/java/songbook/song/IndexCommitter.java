@@ -0,0 +1,127 @@
+package songbook.song;
+
+import org.apache.lucene.index.IndexWriter;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Groups index changes into shared commits.
+ * <p>
+ * Changes are applied to the {@link IndexWriter} by the caller, which then asks for a commit with
+ * {@link #commit()}. The commit is done at most <code>maxDelay</code> milliseconds later, or as soon as
+ * <code>maxChanges</code> changes are waiting, and one commit makes all the waiting changes durable.
+ */
+class IndexCommitter {
+
+    private final Logger logger = Logger.getLogger("Songbook");
+
+    private final IndexWriter indexWriter;
+
+    private final long maxDelay;
+
+    private final int maxChanges;
+
+    /** Commits are executed on a single thread, one after the other. */
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "Songbook Index Committer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /** Changes waiting for the next commit, guarded by this. */
+    private List<CompletableFuture<Void>> pending = new ArrayList<>();
+
+    /** Next scheduled commit, guarded by this. */
+    private ScheduledFuture<?> scheduled = null;
+
+    private volatile long commitCount = 0;
+
+    private volatile long lastCommitTime = 0;
+
+    IndexCommitter(IndexWriter indexWriter, long maxDelay, int maxChanges) {
+        this.indexWriter = indexWriter;
+        this.maxDelay = Math.max(0, maxDelay);
+        this.maxChanges = Math.max(1, maxChanges);
+    }
+
+    /**
+     * Asks for a change already applied to the writer to be committed.
+     * @return a future completed when the change is durable.
+     */
+    synchronized CompletableFuture<Void> commit() {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        pending.add(future);
+        if (pending.size() >= maxChanges) {
+            schedule(0);
+        } else if (scheduled == null) {
+            schedule(maxDelay);
+        }
+        return future;
+    }
+
+    /**
+     * Commits now all the waiting changes.
+     * @return a future completed when they are durable.
+     */
+    synchronized CompletableFuture<Void> flush() {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        pending.add(future);
+        schedule(0);
+        return future;
+    }
+
+    /** Number of commits done since start. */
+    long getCommitCount() {
+        return commitCount;
+    }
+
+    /** Time in milliseconds of the last commit, 0 if none was done since start. */
+    long getLastCommitTime() {
+        return lastCommitTime;
+    }
+
+    /** Commits waiting changes and stops the committer thread. */
+    void close() {
+        flush().join();
+        executor.shutdown();
+    }
+
+    private void schedule(long delay) {
+        if (scheduled != null) {
+            if (delay > 0 || scheduled.getDelay(TimeUnit.MILLISECONDS) <= 0) return;
+            // a commit is already planned later, advances it
+            if (scheduled.cancel(false) == false) return;
+        }
+        scheduled = executor.schedule(this::doCommit, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void doCommit() {
+        List<CompletableFuture<Void>> committing;
+        synchronized (this) {
+            committing = pending;
+            pending = new ArrayList<>();
+            scheduled = null;
+        }
+        if (committing.isEmpty()) return;
+
+        try {
+            // all the changes of the committing futures were applied before they were added
+            indexWriter.commit();
+            commitCount += 1;
+            lastCommitTime = System.currentTimeMillis();
+            committing.forEach(future -> future.complete(null));
+        } catch (IOException | RuntimeException e) {
+            logger.log(Level.SEVERE, "Can't commit index", e);
+            committing.forEach(future -> future.completeExceptionally(e));
+        }
+    }
+}
@@ -3,20 +3,34 @@ package songbook.song;
 import org.apache.lucene.analysis.standard.StandardAnalyzer;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.document.Field;
+import org.apache.lucene.document.SortedDocValuesField;
+import org.apache.lucene.document.SortedSetDocValuesField;
+import org.apache.lucene.document.StoredField;
 import org.apache.lucene.document.StringField;
+import org.apache.lucene.document.TextField;
 import org.apache.lucene.index.*;
 import org.apache.lucene.queryparser.classic.ParseException;
-import org.apache.lucene.queryparser.classic.QueryParser;
 import org.apache.lucene.search.*;
 import org.apache.lucene.search.SortField.Type;
 import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.MMapDirectory;
 import org.apache.lucene.store.NIOFSDirectory;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
 import org.apache.lucene.util.Version;
-import songbook.server.Server;
-import songbook.server.Templates;
 
 import java.io.IOException;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
@@ -27,119 +41,825 @@ import java.util.stream.Stream;
  */
 public class IndexDatabase {
 
+    /** Default number of songs in a search page. */
+    public static final int DEFAULT_PAGE_SIZE = 50;
+
+    /** Maximum number of songs in a search page. */
+    public static final int MAX_PAGE_SIZE = 1000;
+
+    /** Version of documents structure, stored in commit data. An index with another version is rebuilt. */
+    private static final String INDEX_FORMAT = "4";
+
+    /** Number of chord steps in each term of the "chords3" field. */
+    private static final int CHORD_NGRAM = 3;
+
+    /** Fields which values are counted for search results and can be used as filters. */
+    public static final String[] FACET_FIELDS = { "artist", "key", "album" };
+
+    /** Number of values with the highest counts returned for each facet. */
+    public static final int FACET_SIZE = 10;
+
+    /** Fields also stored as single sorted doc values. */
+    private static final String[] SORTED_FIELDS = { "id", "title", "key", "album" };
+
+    /** Order of songs listed without query, id makes order total so cursors never depend on document numbers. */
+    private static final Sort LISTING_SORT = new Sort(new SortField("title", Type.STRING), new SortField("id", Type.STRING));
+
+    /** Order of query results, songs with the same score are ordered by id. */
+    private static final Sort QUERY_SORT = new Sort(SortField.FIELD_SCORE, new SortField("id", Type.STRING));
+
     private final Logger logger = Logger.getLogger("Songbook");
 
     private final SongDatabase songDb;
 
     private final IndexWriter indexWriter;
 
+    /** Keeps the commits used by snapshots. */
+    private final SnapshotDeletionPolicy snapshotPolicy = new SnapshotDeletionPolicy(new KeepOnlyLastCommitDeletionPolicy());
+
+    private final TrackingIndexWriter trackingIndexWriter;
+
+    /** Shared searcher, reopened from the writer (near-real-time) by {@link #reopenThread}. */
+    private final SearcherManager searcherManager;
+
+    private final ControlledRealTimeReopenThread<IndexSearcher> reopenThread;
+
+    private final IndexCommitter committer;
+
+    private final SearchCache searchCache;
+
+    private final SongSuggester suggester;
+
+    private final QueryGuard queryGuard;
+
+    /** Maximum time in milliseconds to collect hits, 0 for no limit. */
+    private final long searchTimeout;
+
+    private final Path indexFolder;
+
+    /**
+     * Writes and searcher refreshes share this lock, a rebuild takes it exclusively while it replaces all
+     * documents so that a searcher never sees the index between the removal and the addition.
+     */
+    private final ReadWriteLock swapLock = new ReentrantReadWriteLock();
+
+    /** Runs rebuilds and forced merges one after the other. */
+    private final ExecutorService maintenanceExecutor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "Songbook Index Maintenance");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /** Last rebuild, null if none was started. */
+    private volatile IndexRebuild rebuild = null;
+
+    /** Ids of songs changed while a rebuild is indexing, null when no rebuild runs. */
+    private volatile Set<String> rebuildChanges = null;
+
+    /** Description of the last forced merge, null if none was started. */
+    private volatile String mergeStatus = null;
+
     private StandardAnalyzer analyzer;
 
     private Directory index;
 
     public IndexDatabase(Path indexFolder, SongDatabase songDb) throws IOException {
+        this(indexFolder, songDb, new IndexSettings());
+    }
+
+    public IndexDatabase(Path indexFolder, SongDatabase songDb, IndexSettings settings) throws IOException {
         this.songDb = songDb;
+        this.indexFolder = indexFolder;
+        this.searchCache = new SearchCache(settings.searchCacheSize);
+        this.queryGuard = new QueryGuard(settings.maxQueryClauses, settings.maxQueryExpansions);
+        this.searchTimeout = settings.searchTimeout;
 
         analyzer = new StandardAnalyzer(Version.LUCENE_48);
-        index = new NIOFSDirectory(indexFolder.toFile());
-        indexWriter = new IndexWriter(index, new IndexWriterConfig(Version.LUCENE_48, analyzer));
-        if (DirectoryReader.indexExists(index) == false) {
+        index = openDirectory(indexFolder, settings.directory);
+        IndexWriterConfig config = new IndexWriterConfig(Version.LUCENE_48, analyzer);
+        config.setIndexDeletionPolicy(snapshotPolicy);
+        config.setMergePolicy(createMergePolicy(settings));
+        indexWriter = new IndexWriter(index, config);
+        trackingIndexWriter = new TrackingIndexWriter(indexWriter);
+        committer = new IndexCommitter(indexWriter, settings.commitDelay, settings.commitMaxChanges);
+        searcherManager = new SearcherManager(indexWriter, true, null);
+        searcherManager.addListener(new ReferenceManager.RefreshListener() {
+            @Override
+            public void beforeRefresh() {
+                swapLock.readLock().lock();
+            }
+
+            @Override
+            public void afterRefresh(boolean didRefresh) {
+                swapLock.readLock().unlock();
+            }
+        });
+
+        // refreshes searcher in background, waiting for a generation never takes more than maxStaleness
+        double maxStaleSec = Math.max(settings.maxStaleness, 1) / 1000.0;
+        reopenThread = new ControlledRealTimeReopenThread<>(trackingIndexWriter, searcherManager, maxStaleSec, Math.min(0.025, maxStaleSec));
+        reopenThread.setName("Songbook NRT Reopen Thread");
+        reopenThread.setDaemon(true);
+        reopenThread.start();
+
+        // an index written with another format is rebuilt
+        boolean sameFormat = INDEX_FORMAT.equals(indexWriter.getCommitData().get("format"));
+        indexWriter.setCommitData(Collections.singletonMap("format", INDEX_FORMAT));
+        if (DirectoryReader.indexExists(index) == false || sameFormat == false) {
             analyzeSongs();
+        } else {
+            synchronizeSongs();
         }
+
+        // suggester is rebuilt when searcher sees changes
+        suggester = new SongSuggester(searcherManager, settings.suggestDelay);
+        suggester.build();
+        searcherManager.addListener(suggester);
     }
 
-    public void addOrUpdateDocument(Document document) throws IOException {
-        indexWriter.updateDocument(new Term("id", document.get("id")), document);
-        indexWriter.commit();
+    private Directory openDirectory(Path indexFolder, String type) throws IOException {
+        switch (type) {
+            case IndexSettings.DIRECTORY_MMAP:
+                return new MMapDirectory(indexFolder.toFile());
+            case IndexSettings.DIRECTORY_RAM:
+                Files.createDirectories(indexFolder);
+                return new PersistentRAMDirectory(new NIOFSDirectory(indexFolder.toFile()));
+            case IndexSettings.DIRECTORY_NIO:
+                return new NIOFSDirectory(indexFolder.toFile());
+            default:
+                logger.warning("Unknown index directory '" + type + "', uses " + IndexSettings.DIRECTORY_NIO + ".");
+                return new NIOFSDirectory(indexFolder.toFile());
+        }
     }
 
+    private MergePolicy createMergePolicy(IndexSettings settings) {
+        switch (settings.mergePolicy) {
+            case IndexSettings.MERGE_LOG_BYTE_SIZE:
+                LogByteSizeMergePolicy byteSize = new LogByteSizeMergePolicy();
+                byteSize.setMergeFactor(settings.mergeFactor);
+                byteSize.setMaxMergeMB(settings.maxMergedSegmentMB);
+                return byteSize;
+            case IndexSettings.MERGE_LOG_DOC:
+                LogDocMergePolicy doc = new LogDocMergePolicy();
+                doc.setMergeFactor(settings.mergeFactor);
+                return doc;
+            default:
+                if (IndexSettings.MERGE_TIERED.equals(settings.mergePolicy) == false) {
+                    logger.warning("Unknown merge policy '" + settings.mergePolicy + "', uses " + IndexSettings.MERGE_TIERED + ".");
+                }
+                TieredMergePolicy tiered = new TieredMergePolicy();
+                tiered.setSegmentsPerTier(settings.mergeFactor);
+                tiered.setMaxMergeAtOnce(settings.mergeFactor);
+                tiered.setMaxMergedSegmentMB(settings.maxMergedSegmentMB);
+                return tiered;
+        }
+    }
+
+    /**
+     * Adds or replaces the document with the same id.
+     * @return a future completed when the change is committed.
+     */
+    public CompletableFuture<Void> addOrUpdateDocument(Document document) throws IOException {
+        String id = document.get("id");
+        swapLock.readLock().lock();
+        try {
+            trackingIndexWriter.updateDocument(new Term("id", id), document);
+            recordRebuildChange(id);
+        } finally {
+            swapLock.readLock().unlock();
+        }
+        return committer.commit();
+    }
 
+    /**
+     * Indexes song contents with its id, modification time and hash. The song must already be written.
+     * @return a future completed when the change is committed.
+     */
+    public CompletableFuture<Void> addOrUpdateSong(String id, String contents) throws IOException {
+        return addOrUpdateDocument(createDocument(id, contents));
+    }
+
+    /**
+     * Indexes song contents like {@link #addOrUpdateSong} but doesn't ask for a commit, used by bulk imports
+     * which call {@link #commit()} once at the end. Safe to call from several threads.
+     */
+    void indexSong(String id, String contents) throws IOException {
+        Document document = createDocument(id, contents);
+        swapLock.readLock().lock();
+        try {
+            trackingIndexWriter.updateDocument(new Term("id", id), document);
+            recordRebuildChange(id);
+        } finally {
+            swapLock.readLock().unlock();
+        }
+    }
+
+    /** Commits all pending changes now and waits for it. */
+    void commit() throws IOException {
+        commitNow();
+    }
 
     public String getTitle(String id) throws IOException {
-        DirectoryReader reader = DirectoryReader.open(index);
-        IndexSearcher searcher = new IndexSearcher(reader);
-
-        ScoreDoc[] scoreDocs = searcher.search(new TermQuery(new Term("id", id)), 1).scoreDocs;
-        String title = null;
-        if (scoreDocs.length > 0) {
-            title = reader.document(scoreDocs[0].doc).get("title");
-        }
-        reader.close();
-        return title;
-    }
-
-    public void removeDocument(String id) throws IOException {
-        indexWriter.deleteDocuments(new Term("id", id));
-        indexWriter.commit();
-    }
-
-    public void analyzeSongs() throws IOException {
-        // clears index
-        indexWriter.deleteAll();
-        indexWriter.commit();
-
-        songDb.listSongIds().forEach(
-            (id) -> {
-                String contents = songDb.getSongContents(id);
-                if (contents != null) {
-                    Document document = SongUtils.indexSong(contents);
-                    document.add(new StringField("id", id, Field.Store.YES));
-                    try {
-                        indexWriter.addDocument(document);
-                        indexWriter.commit();
-                    } catch (IOException e) {
-                        logger.log(Level.WARNING, "Can't index song '" + id + "'", e);
+        IndexSearcher searcher = searcherManager.acquire();
+        try {
+            ScoreDoc[] scoreDocs = searcher.search(new TermQuery(new Term("id", id)), 1).scoreDocs;
+            String title = null;
+            if (scoreDocs.length > 0) {
+                title = loadHit(searcher.getIndexReader(), scoreDocs[0].doc).title;
+            }
+            return title;
+        } finally {
+            searcherManager.release(searcher);
+        }
+    }
+
+    /**
+     * Removes the document with the given id.
+     * @return a future completed when the change is committed.
+     */
+    public CompletableFuture<Void> removeDocument(String id) throws IOException {
+        swapLock.readLock().lock();
+        try {
+            trackingIndexWriter.deleteDocuments(new Term("id", id));
+            recordRebuildChange(id);
+        } finally {
+            swapLock.readLock().unlock();
+        }
+        return committer.commit();
+    }
+
+    /** Remembers a song changed during a rebuild, it will be indexed again after the swap. */
+    private void recordRebuildChange(String id) {
+        Set<String> changes = rebuildChanges;
+        if (changes != null) changes.add(id);
+    }
+
+    /**
+     * Starts to rebuild the index in background, searches use the current index until the rebuild is done.
+     * @return the started rebuild or the running one if there is already one.
+     */
+    public synchronized IndexRebuild rebuild() {
+        if (rebuild != null && rebuild.isRunning()) return rebuild;
+        IndexRebuild started = new IndexRebuild();
+        rebuild = started;
+        maintenanceExecutor.execute(() -> rebuild(started));
+        return started;
+    }
+
+    /** Last started rebuild, null if there wasn't any. */
+    public IndexRebuild getRebuild() {
+        return rebuild;
+    }
+
+    /**
+     * Indexes all songs in a side directory, then replaces the current documents with the new ones
+     * and indexes again songs changed in the meantime, all in one commit.
+     */
+    private void rebuild(IndexRebuild progress) {
+        Path sideFolder = indexFolder.resolveSibling(indexFolder.getFileName() + ".rebuild");
+        try {
+            rebuildChanges = ConcurrentHashMap.newKeySet();
+            deleteFolder(sideFolder);
+
+            List<String> ids;
+            try (Stream<String> stream = songDb.listSongIds()) {
+                ids = stream.collect(Collectors.toList());
+            }
+            progress.setTotal(ids.size());
+
+            try (Directory side = new NIOFSDirectory(sideFolder.toFile())) {
+                // side writer must be closed before its documents are added to the index
+                try (IndexWriter sideWriter = new IndexWriter(side, new IndexWriterConfig(Version.LUCENE_48, analyzer))) {
+                    ids.parallelStream().forEach(
+                        (id) -> {
+                            Document document = createDocument(id);
+                            if (document != null) {
+                                try {
+                                    sideWriter.addDocument(document);
+                                    progress.incrementIndexed();
+                                } catch (IOException e) {
+                                    logger.log(Level.WARNING, "Can't index song '" + id + "'", e);
+                                }
+                            }
+                        }
+                    );
+                }
+
+                progress.swapping();
+                swapLock.writeLock().lock();
+                try {
+                    Set<String> changes = rebuildChanges;
+                    rebuildChanges = null;
+                    trackingIndexWriter.deleteAll();
+                    trackingIndexWriter.addIndexes(side);
+                    for (String id : changes) {
+                        Document document = songDb.exists(id) ? createDocument(id) : null;
+                        if (document != null) {
+                            trackingIndexWriter.updateDocument(new Term("id", id), document);
+                        } else {
+                            trackingIndexWriter.deleteDocuments(new Term("id", id));
+                        }
+                    }
+                } finally {
+                    swapLock.writeLock().unlock();
+                }
+            }
+            commitNow();
+
+            progress.done();
+            logger.info("Rebuilt index with " + progress.getIndexed() + " songs in " + progress.getTime() + " ms.");
+        } catch (IOException | RuntimeException e) {
+            logger.log(Level.SEVERE, "Can't rebuild index", e);
+            boolean swapping = progress.getState() == IndexRebuild.State.SWAPPING;
+            progress.failed(e);
+            if (swapping) {
+                // documents may have been removed, they are indexed again from songs
+                try {
+                    synchronizeSongs();
+                } catch (IOException | RuntimeException se) {
+                    logger.log(Level.SEVERE, "Can't synchronize index after failed rebuild", se);
+                }
+            }
+        } finally {
+            rebuildChanges = null;
+            try {
+                deleteFolder(sideFolder);
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Can't delete '" + sideFolder + "'", e);
+            }
+        }
+    }
+
+    /**
+     * Merges segments in background until there are at most <code>maxSegments</code>, searches and writes
+     * continue meanwhile. Merged segments are committed.
+     */
+    public void forceMerge(int maxSegments) {
+        runMaintenance("merge to " + maxSegments + " segments", () -> indexWriter.forceMerge(maxSegments));
+    }
+
+    /** Merges in background the segments with deleted documents to remove them. */
+    public void expungeDeletes() {
+        runMaintenance("expunge deletes", indexWriter::forceMergeDeletes);
+    }
+
+    /** Description of the last forced merge, null if none was started. */
+    public String getMergeStatus() {
+        return mergeStatus;
+    }
+
+    private interface IndexOperation {
+        void run() throws IOException;
+    }
+
+    private void runMaintenance(String name, IndexOperation operation) {
+        mergeStatus = name + ": waiting";
+        maintenanceExecutor.execute(() -> {
+            long start = System.currentTimeMillis();
+            mergeStatus = name + ": running";
+            try {
+                operation.run();
+                commitNow();
+                long time = System.currentTimeMillis() - start;
+                mergeStatus = name + ": done in " + time + " ms";
+                logger.info("Index " + name + " done in " + time + " ms.");
+            } catch (IOException | RuntimeException e) {
+                logger.log(Level.SEVERE, "Can't " + name, e);
+                mergeStatus = name + ": failed, " + e.getMessage();
+            }
+        });
+    }
+
+    /** Reads segments and size of the index. */
+    public IndexStats getStats() throws IOException {
+        IndexStats stats = new IndexStats();
+        IndexSearcher searcher = searcherManager.acquire();
+        try {
+            IndexReader reader = searcher.getIndexReader();
+            stats.segments = reader.leaves().size();
+            stats.documents = reader.numDocs();
+            stats.deletedDocuments = reader.numDeletedDocs();
+        } finally {
+            searcherManager.release(searcher);
+        }
+        for (String file : index.listAll()) {
+            try {
+                stats.sizeOnDisk += index.fileLength(file);
+            } catch (IOException e) {
+                // file was deleted meanwhile
+            }
+        }
+        stats.lastCommit = committer.getLastCommitTime();
+        return stats;
+    }
+
+    private static void deleteFolder(Path folder) throws IOException {
+        if (Files.exists(folder) == false) return;
+        try (Stream<Path> paths = Files.walk(folder)) {
+            for (Path path : paths.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) {
+                Files.delete(path);
+            }
+        }
+    }
+
+    /**
+     * Clears the index and indexes all songs. Songs are read, parsed and added to the writer in parallel,
+     * the index is committed once at the end.
+     * @return the number of indexed songs.
+     */
+    public int analyzeSongs() throws IOException {
+        long start = System.currentTimeMillis();
+
+        List<String> ids;
+        try (Stream<String> stream = songDb.listSongIds()) {
+            ids = stream.collect(Collectors.toList());
+        }
+
+        AtomicInteger count = new AtomicInteger();
+        // a rebuild can't swap documents meanwhile, songs indexed here are indexed again after its swap
+        swapLock.readLock().lock();
+        try {
+            // clears index, it will be committed with the new documents
+            trackingIndexWriter.deleteAll();
+            ids.parallelStream().forEach(
+                (id) -> {
+                    recordRebuildChange(id);
+                    Document document = createDocument(id);
+                    if (document != null) {
+                        try {
+                            trackingIndexWriter.addDocument(document);
+                            count.incrementAndGet();
+                        } catch (IOException e) {
+                            logger.log(Level.WARNING, "Can't index song '" + id + "'", e);
+                        }
+                    }
+                }
+            );
+        } finally {
+            swapLock.readLock().unlock();
+        }
+        commitNow();
+
+        long time = Math.max(1, System.currentTimeMillis() - start);
+        logger.info("Indexed " + count.get() + " songs in " + time + " ms (" + (count.get() * 1000L / time) + " songs/s).");
+        return count.get();
+    }
+
+    /**
+     * Compares the songs with the modification times stored in index, then indexes only added or
+     * modified songs and removes deleted ones. The index is committed once at the end.
+     * @return the number of changed songs.
+     */
+    public int synchronizeSongs() throws IOException {
+        long start = System.currentTimeMillis();
+
+        // reads indexed modification times
+        Map<String, Long> indexed = new HashMap<>();
+        searcherManager.maybeRefreshBlocking();
+        IndexSearcher searcher = searcherManager.acquire();
+        try {
+            IndexReader reader = searcher.getIndexReader();
+            Bits liveDocs = MultiFields.getLiveDocs(reader);
+            Set<String> fields = new HashSet<>(Arrays.asList("id", "modified"));
+            for (int i = 0; i < reader.maxDoc(); i++) {
+                if (liveDocs != null && liveDocs.get(i) == false) continue;
+                Document document = reader.document(i, fields);
+                IndexableField modified = document.getField("modified");
+                indexed.put(document.get("id"), modified == null ? -1L : modified.numericValue().longValue());
+            }
+        } finally {
+            searcherManager.release(searcher);
+        }
+
+        List<String> changed = new ArrayList<>();
+        try (Stream<String> stream = songDb.listSongIds()) {
+            stream.forEach((id) -> {
+                Long modified = indexed.remove(id);
+                if (modified == null || modified != songDb.getLastModified(id)) {
+                    changed.add(id);
+                }
+            });
+        }
+
+        // a rebuild can't swap documents meanwhile, changed songs are indexed again after its swap
+        swapLock.readLock().lock();
+        try {
+            // remaining indexed songs don't exist any more
+            for (String id : indexed.keySet()) {
+                recordRebuildChange(id);
+                trackingIndexWriter.deleteDocuments(new Term("id", id));
+            }
+
+            changed.parallelStream().forEach(
+                (id) -> {
+                    recordRebuildChange(id);
+                    Document document = createDocument(id);
+                    if (document != null) {
+                        try {
+                            trackingIndexWriter.updateDocument(new Term("id", id), document);
+                        } catch (IOException e) {
+                            logger.log(Level.WARNING, "Can't index song '" + id + "'", e);
+                        }
+                    }
+                }
+            );
+        } finally {
+            swapLock.readLock().unlock();
+        }
+        commitNow();
+
+        long time = System.currentTimeMillis() - start;
+        logger.info("Synchronized index in " + time + " ms: " + changed.size() + " songs added or modified, " + indexed.size() + " removed.");
+        return changed.size() + indexed.size();
+    }
+
+    /**
+     * Reindexes the given songs from their files: songs with a changed content hash are updated,
+     * songs that don't exist any more are removed.
+     * @return a future completed when the changes are committed.
+     */
+    public CompletableFuture<Void> updateSongs(Collection<String> ids) throws IOException {
+        Map<String, String> indexedHashes = new HashMap<>();
+        IndexSearcher searcher = searcherManager.acquire();
+        try {
+            Set<String> fields = Collections.singleton("hash");
+            for (String id : ids) {
+                ScoreDoc[] scoreDocs = searcher.search(new TermQuery(new Term("id", id)), 1).scoreDocs;
+                if (scoreDocs.length > 0) {
+                    indexedHashes.put(id, searcher.doc(scoreDocs[0].doc, fields).get("hash"));
+                }
+            }
+        } finally {
+            searcherManager.release(searcher);
+        }
+
+        int updated = 0;
+        int removed = 0;
+        swapLock.readLock().lock();
+        try {
+            for (String id : ids) {
+                recordRebuildChange(id);
+                if (songDb.exists(id)) {
+                    Document document = createDocument(id);
+                    if (document != null && document.get("hash").equals(indexedHashes.get(id)) == false) {
+                        trackingIndexWriter.updateDocument(new Term("id", id), document);
+                        updated += 1;
                     }
+                } else if (indexedHashes.containsKey(id)) {
+                    trackingIndexWriter.deleteDocuments(new Term("id", id));
+                    removed += 1;
                 }
             }
-        );
-        indexWriter.commit();
+        } finally {
+            swapLock.readLock().unlock();
+        }
+        if (updated + removed > 0) {
+            logger.info("Updated index: " + updated + " songs added or modified, " + removed + " removed.");
+        }
+        return committer.commit();
+    }
 
+    /** Reads and parses song to create its document, returns null if song can't be read. */
+    private Document createDocument(String id) {
+        // reads time before contents, a modification while reading will be seen at next synchronization
+        long modified = songDb.getLastModified(id);
+        String contents = songDb.getSongContents(id);
+        if (contents == null) return null;
+        return createDocument(id, contents, modified);
     }
 
-    public void search(String querystr, Appendable out, String mimeType) throws ParseException, IOException {
-        int hitsPerPage = 50;
-        IndexReader reader = DirectoryReader.open(index);
-        IndexSearcher searcher = new IndexSearcher(reader);
+    private Document createDocument(String id, String contents) {
+        return createDocument(id, contents, songDb.getLastModified(id));
+    }
 
-        ScoreDoc[] hits;
-        if (querystr == null || querystr.isEmpty()) {
-            Query query = new MatchAllDocsQuery();
-            TopFieldDocs topFieldDocs = searcher.search(query, hitsPerPage, new Sort(new SortField("title", Type.STRING)));
-            hits = topFieldDocs.scoreDocs;
+    private Document createDocument(String id, String contents, long modified) {
+        Document document = SongUtils.indexSong(contents);
+        document.add(new StringField("id", id, Field.Store.YES));
+        document.add(new StoredField("modified", modified));
+        document.add(new StoredField("hash", SongUtils.contentHash(contents)));
+
+        // songs give their key as "tone" or "key", it's always searched, counted and sorted as "key"
+        String tone = document.get("tone");
+        if (tone != null && document.get("key") == null) {
+            document.add(new StringField("key", tone, Field.Store.YES));
+        }
+
+        // columns used to sort and render results without loading stored fields
+        for (String field : SORTED_FIELDS) {
+            String value = document.get(field);
+            if (value != null) {
+                document.add(new SortedDocValuesField(field, new BytesRef(value)));
+            }
+        }
+        for (String artist : new HashSet<>(Arrays.asList(document.getValues("artist")))) {
+            document.add(new SortedSetDocValuesField("artist", new BytesRef(artist)));
+        }
+
+        // chord progression as steps (in any key) and as n-grams of steps for longer progressions
+        List<String> steps = SongUtils.getChordSteps(SongUtils.getChords(contents));
+        document.add(new TextField("chords", String.join(" ", steps), Field.Store.NO));
+        document.add(new TextField("chords" + CHORD_NGRAM, String.join(" ", chordNgrams(steps)), Field.Store.NO));
+        return document;
+    }
+
+    /** Joins each run of {@link #CHORD_NGRAM} consecutive steps into one term. */
+    private static List<String> chordNgrams(List<String> steps) {
+        List<String> ngrams = new ArrayList<>();
+        for (int i = 0; i + CHORD_NGRAM <= steps.size(); i++) {
+            ngrams.add(String.join("_", steps.subList(i, i + CHORD_NGRAM)));
+        }
+        return ngrams;
+    }
+
+    /**
+     * Creates query matching songs containing the chord progression in any key: steps are looked up
+     * as n-grams (phrase of overlapping n-grams for longer progressions) or as single steps when the
+     * progression is too short. Returns null if there are less than two chords.
+     */
+    private static Query chordsQuery(String chords) {
+        List<String> steps = SongUtils.getChordSteps(Arrays.asList(chords.trim().split("[\\s|]+")));
+        if (steps.isEmpty()) return null;
+
+        PhraseQuery query = new PhraseQuery();
+        if (steps.size() < CHORD_NGRAM) {
+            for (String step : steps) {
+                query.add(new Term("chords", step));
+            }
         } else {
-            // the "lyrics" arg specifies the default field to use
-            // when no field is explicitly specified in the query.
-            Query query = new QueryParser(Version.LUCENE_48, "song", analyzer).parse(querystr);
-            TopScoreDocCollector collector = TopScoreDocCollector.create(hitsPerPage, true);
-            searcher.search(query, collector);
-            hits = collector.topDocs().scoreDocs;
-        }
-
-        if (Server.MIME_TEXT_HTML.equals(mimeType)) {
-            Templates.startSongItems(out);
-        }
-        for (int i = 0; i < hits.length; ++i) {
-            int docId = hits[i].doc;
-            Document doc = searcher.doc(docId);
-            switch (mimeType) {
-                case Server.MIME_TEXT_HTML:
-                    String artists = Stream.of(doc.getValues("artist")).collect(Collectors.joining(", "));
-                    Templates.songItem(out, doc.get("id"), doc.get("title"), artists);
-                    break;
-                case Server.MIME_TEXT_PLAIN:
-                default:
-                    out.append(doc.get("id") + "\n");
-                    break;
-            }
-        }
-        if (Server.MIME_TEXT_HTML.equals(mimeType)) {
-            Templates.endSongItems(out);
-        }
-
-        // reader can only be closed when there
-        // is no need to access the documents any more.
-        reader.close();
+            List<String> ngrams = chordNgrams(steps);
+            for (int i = 0; i < ngrams.size(); i++) {
+                // last n-gram must cover the end of progression, other ones only need to follow each other
+                if (i % CHORD_NGRAM == 0 || i == ngrams.size() - 1) {
+                    query.add(new Term("chords" + CHORD_NGRAM, ngrams.get(i)), i);
+                }
+            }
+        }
+        return query;
+    }
+
+    /** Commits all pending changes, waits for it and refreshes searcher. */
+    private void commitNow() throws IOException {
+        try {
+            committer.flush().join();
+        } catch (CompletionException e) {
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+        }
+        searcherManager.maybeRefreshBlocking();
+    }
+
+    /**
+     * Searches one page of songs, the page comes from cache if the index didn't change since it was computed.
+     * @param querystr query, all songs sorted by title if empty.
+     * @param chords chord progression (e.g. "C G Am F") found in any key, may be empty.
+     * @param filters exact values required for facet fields (artist, key, album), may be empty.
+     * @param cursor position returned by the previous page, null for the first page.
+     * @param pageSize number of songs in page.
+     * @throws IllegalArgumentException if cursor or chords aren't valid.
+     */
+    public SearchPage search(String querystr, String chords, Map<String, String> filters, String cursor, int pageSize) throws ParseException, IOException {
+        String key = SearchCache.key(querystr, chords, filters, cursor, pageSize);
+        IndexSearcher searcher = searcherManager.acquire();
+        try {
+            long version = ((DirectoryReader) searcher.getIndexReader()).getVersion();
+            SearchPage page = searchCache.get(key, version);
+            if (page == null) {
+                page = search(searcher, querystr, chords, filters, cursor, pageSize);
+                // a truncated page may be complete when the server is less busy
+                if (page.truncated == false) searchCache.put(key, version, page);
+            }
+            return page;
+        } finally {
+            // searcher can only be released when there
+            // is no need to access the documents any more.
+            searcherManager.release(searcher);
+        }
+    }
+
+    private SearchPage search(IndexSearcher searcher, String querystr, String chords, Map<String, String> filters, String cursor, int pageSize) throws ParseException, IOException {
+        // one more hit tells if there is a next page
+        int hitsCount = pageSize + 1;
+        boolean hasQuery = querystr != null && querystr.isEmpty() == false;
+        boolean hasChords = chords != null && chords.trim().isEmpty() == false;
+        boolean listing = hasQuery == false && hasChords == false;
+
+        Query query;
+        if (listing) {
+            query = new MatchAllDocsQuery();
+        } else {
+            Query chordsQuery = null;
+            if (hasChords) {
+                chordsQuery = chordsQuery(chords);
+                if (chordsQuery == null) throw new IllegalArgumentException("Chord progression needs at least two different chords");
+            }
+            if (hasQuery) {
+                // the "lyrics" arg specifies the default field to use
+                // when no field is explicitly specified in the query.
+                query = queryGuard.parse(querystr, "song", analyzer);
+                if (chordsQuery != null) {
+                    BooleanQuery both = new BooleanQuery();
+                    both.add(query, BooleanClause.Occur.MUST);
+                    both.add(chordsQuery, BooleanClause.Occur.MUST);
+                    query = both;
+                }
+            } else {
+                query = chordsQuery;
+            }
+        }
+        Sort sort = listing ? LISTING_SORT : QUERY_SORT;
+        FieldDoc after = cursor == null || cursor.isEmpty() ? null : SearchCursor.decode(cursor, sort);
+        TopFieldCollector hitsCollector = TopFieldCollector.create(sort, hitsCount, after, true, false, false, false);
+
+        // filters restrict results without changing scores
+        Filter filter = null;
+        if (filters.isEmpty() == false) {
+            BooleanQuery filterQuery = new BooleanQuery();
+            for (Map.Entry<String, String> entry : filters.entrySet()) {
+                filterQuery.add(new TermQuery(new Term(entry.getKey(), entry.getValue())), BooleanClause.Occur.MUST);
+            }
+            filter = new QueryWrapperFilter(filterQuery);
+        }
+
+        // hits and facets are collected in one pass, stopped if it exceeds the time budget
+        FacetCounter facetCounter = new FacetCounter(FACET_FIELDS);
+        Collector collector = MultiCollector.wrap(hitsCollector, facetCounter);
+        if (searchTimeout > 0) {
+            collector = new TimeLimitingCollector(collector, TimeLimitingCollector.getGlobalCounter(), searchTimeout);
+        }
+        SearchPage page = new SearchPage();
+        try {
+            searcher.search(query, filter, collector);
+        } catch (TimeLimitingCollector.TimeExceededException e) {
+            logger.warning("Search '" + querystr + "' stopped after " + e.getTimeElapsed() + " ms.");
+            page.truncated = true;
+        }
+        ScoreDoc[] hits = hitsCollector.topDocs().scoreDocs;
+
+        int count = Math.min(hits.length, pageSize);
+        for (int i = 0; i < count; ++i) {
+            page.hits.add(loadHit(searcher.getIndexReader(), hits[i].doc));
+        }
+        page.nextCursor = hits.length > pageSize ? SearchCursor.encode((FieldDoc) hits[pageSize - 1]) : null;
+        page.totalHits = hitsCollector.getTotalHits();
+        page.facets = facetCounter.top(FACET_SIZE);
+        return page;
+    }
+
+    /** Reads hit fields from doc values columns. */
+    private SearchPage.Hit loadHit(IndexReader reader, int docId) throws IOException {
+        List<AtomicReaderContext> leaves = reader.leaves();
+        AtomicReaderContext leaf = leaves.get(ReaderUtil.subIndex(docId, leaves));
+        int leafDocId = docId - leaf.docBase;
+
+        BytesRef bytes = new BytesRef();
+        leaf.reader().getSortedDocValues("id").get(leafDocId, bytes);
+        String id = bytes.utf8ToString();
+        leaf.reader().getSortedDocValues("title").get(leafDocId, bytes);
+        String title = bytes.utf8ToString();
+
+        List<String> artists = new ArrayList<>();
+        SortedSetDocValues artistValues = leaf.reader().getSortedSetDocValues("artist");
+        if (artistValues != null) {
+            artistValues.setDocument(leafDocId);
+            for (long ord = artistValues.nextOrd(); ord != SortedSetDocValues.NO_MORE_ORDS; ord = artistValues.nextOrd()) {
+                artistValues.lookupOrd(ord, bytes);
+                artists.add(bytes.utf8ToString());
+            }
+        }
+        return new SearchPage.Hit(id, title, artists.toArray(new String[artists.size()]));
+    }
+
+    /**
+     * Pins the last commit, its files won't be deleted until {@link #releaseSnapshot(IndexCommit)} is called.
+     * Writes and commits continue meanwhile.
+     */
+    IndexCommit acquireSnapshot() throws IOException {
+        return snapshotPolicy.snapshot();
+    }
+
+    /** Releases a commit pinned by {@link #acquireSnapshot()} and deletes its files if they aren't used any more. */
+    void releaseSnapshot(IndexCommit commit) throws IOException {
+        snapshotPolicy.release(commit);
+        indexWriter.deleteUnusedFiles();
+    }
+
+    /** Suggests titles and artists starting with given text. */
+    public List<String> suggest(String text, int count) {
+        return suggester.suggest(text, count);
+    }
+
+    public SearchCache getSearchCache() {
+        return searchCache;
+    }
+
+    /** Commits pending writes, stops the reopen thread and closes searcher and writer. */
+    public void close() throws IOException {
+        maintenanceExecutor.shutdownNow();
+        committer.close();
+        suggester.close();
+        reopenThread.close();
+        searcherManager.close();
+        indexWriter.close();
+        index.close();
     }
 
 }
@@ -0,0 +1,100 @@
+package songbook.song;
+
+/**
+ * Progress of an index rebuild started by {@link IndexDatabase#rebuild()}.
+ * <p>
+ * Songs are indexed in a side directory while the current index keeps serving searches, then the new
+ * documents replace the current ones in one step and the side directory is removed.
+ */
+public class IndexRebuild {
+
+    public enum State {
+        /** Songs are being indexed in side directory. */
+        INDEXING,
+        /** New documents are replacing the current ones. */
+        SWAPPING,
+        DONE,
+        FAILED
+    }
+
+    private final long start = System.currentTimeMillis();
+
+    private volatile State state = State.INDEXING;
+
+    private volatile int total = 0;
+
+    private volatile int indexed = 0;
+
+    private volatile long end = -1;
+
+    private volatile String error = null;
+
+    public State getState() {
+        return state;
+    }
+
+    /** Number of songs to index, known once songs are listed. */
+    public int getTotal() {
+        return total;
+    }
+
+    /** Number of songs already indexed in side directory. */
+    public int getIndexed() {
+        return indexed;
+    }
+
+    /** Elapsed time in milliseconds, until now if rebuild is running. */
+    public long getTime() {
+        return (end < 0 ? System.currentTimeMillis() : end) - start;
+    }
+
+    public long getStart() {
+        return start;
+    }
+
+    /** Failure message if state is {@link State#FAILED}. */
+    public String getError() {
+        return error;
+    }
+
+    public boolean isRunning() {
+        return state == State.INDEXING || state == State.SWAPPING;
+    }
+
+    void setTotal(int total) {
+        this.total = total;
+    }
+
+    synchronized void incrementIndexed() {
+        indexed += 1;
+    }
+
+    void swapping() {
+        state = State.SWAPPING;
+    }
+
+    void done() {
+        end = System.currentTimeMillis();
+        state = State.DONE;
+    }
+
+    void failed(Throwable e) {
+        end = System.currentTimeMillis();
+        error = e.getMessage() == null ? e.getClass().getSimpleName() : e.getMessage();
+        state = State.FAILED;
+    }
+
+    @Override
+    public String toString() {
+        switch (state) {
+            case INDEXING:
+                return "indexing " + indexed + " / " + total + " songs (" + getTime() / 1000 + " s)";
+            case SWAPPING:
+                return "swapping " + indexed + " songs (" + getTime() / 1000 + " s)";
+            case DONE:
+                return "done, " + indexed + " songs in " + getTime() + " ms";
+            default:
+                return "failed after " + getTime() + " ms: " + error;
+        }
+    }
+}
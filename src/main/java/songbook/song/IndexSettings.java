@@ -0,0 +1,62 @@
+package songbook.song;
+
+/**
+ * Settings used to open an {@link IndexDatabase}, default values suit a small catalog.
+ */
+public class IndexSettings {
+
+    /** Index files are memory-mapped. */
+    public static final String DIRECTORY_MMAP = "mmap";
+
+    /** Index files are read with positional reads. */
+    public static final String DIRECTORY_NIO = "nio";
+
+    /** Index is loaded in memory at startup and written to disk on each commit. */
+    public static final String DIRECTORY_RAM = "ram";
+
+    /** Segments are merged by size tiers. */
+    public static final String MERGE_TIERED = "tiered";
+
+    /** Segments of similar size (in bytes) are merged by levels. */
+    public static final String MERGE_LOG_BYTE_SIZE = "logbytesize";
+
+    /** Segments of similar number of documents are merged by levels. */
+    public static final String MERGE_LOG_DOC = "logdoc";
+
+    /** How index files are accessed: {@link #DIRECTORY_MMAP}, {@link #DIRECTORY_NIO} or {@link #DIRECTORY_RAM}. */
+    public String directory = DIRECTORY_NIO;
+
+    /** How segments are selected for merges: {@link #MERGE_TIERED}, {@link #MERGE_LOG_BYTE_SIZE} or {@link #MERGE_LOG_DOC}. */
+    public String mergePolicy = MERGE_TIERED;
+
+    /** Number of segments merged at once. */
+    public int mergeFactor = 10;
+
+    /** Maximum size (in megabytes) of a segment produced by a natural merge. */
+    public double maxMergedSegmentMB = 512;
+
+    /** Maximum time (in milliseconds) before a write becomes visible to searches. */
+    public long maxStaleness = 1000;
+
+    /** Maximum time (in milliseconds) a write waits to be committed with others. */
+    public long commitDelay = 50;
+
+    /** Number of waiting writes that triggers a commit without waiting for the delay. */
+    public int commitMaxChanges = 100;
+
+    /** Maximum number of search pages kept in cache, 0 disables the cache. */
+    public int searchCacheSize = 256;
+
+    /** Maximum time (in milliseconds) spent collecting hits of a search, 0 for no limit. */
+    public long searchTimeout = 1000;
+
+    /** Maximum number of terms in a user query. */
+    public int maxQueryClauses = 256;
+
+    /** Maximum number of terms a wildcard, prefix or range term is rewritten to. */
+    public int maxQueryExpansions = 64;
+
+    /** Minimum time (in milliseconds) between two rebuilds of the suggester after index changes. */
+    public long suggestDelay = 1000;
+
+}
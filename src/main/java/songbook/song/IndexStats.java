@@ -0,0 +1,28 @@
+package songbook.song;
+
+/**
+ * Segments and size of the index seen by the current searcher.
+ */
+public class IndexStats {
+
+    /** Number of segments. */
+    public int segments;
+
+    /** Number of live documents. */
+    public int documents;
+
+    /** Number of deleted documents not yet removed by a merge. */
+    public int deletedDocuments;
+
+    /** Size in bytes of all index files. */
+    public long sizeOnDisk;
+
+    /** Time of last commit in milliseconds, 0 if there was none since start. */
+    public long lastCommit;
+
+    /** Ratio of deleted documents among all documents of segments. */
+    public double getDeletedRatio() {
+        int total = documents + deletedDocuments;
+        return total == 0 ? 0 : (double) deletedDocuments / total;
+    }
+}
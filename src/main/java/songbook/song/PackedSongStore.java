@@ -0,0 +1,473 @@
+package songbook.song;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * Stores all songs in one append-only pack file.
+ * <p>
+ * Each write appends a record (id, modification time, contents and CRC), a delete appends a record without
+ * contents. An in-memory map gives the position of the last record of each song. It's saved in an index file
+ * at compaction and close, with the pack length it covers. At opening, the index is loaded and the records
+ * appended after are read again. The first incomplete or corrupted record (from an interrupted write) and
+ * everything after are removed.
+ * <p>
+ * When superseded records use more space than live ones, live records are copied to a new pack which replaces
+ * the current one.
+ */
+class PackedSongStore implements SongStore {
+
+    static final String PACK_FILE = "songs.pack";
+
+    private static final String INDEX_FILE = "songs.idx";
+
+    private static final int RECORD_MAGIC = 0x53425231;
+
+    private static final int INDEX_MAGIC = 0x53424931;
+
+    private static final byte PUT = 0;
+
+    private static final byte DELETE = 1;
+
+    /** magic, type, modified, id length and contents length. */
+    private static final int HEADER_LENGTH = 4 + 1 + 8 + 4 + 4;
+
+    private static final int CRC_LENGTH = 4;
+
+    /** Superseded records aren't compacted below this size. */
+    private static final long MIN_COMPACTION_GARBAGE = 1024 * 1024;
+
+    private static class Entry {
+        final long contentsOffset;
+        final int length;
+        final long modified;
+        final int recordLength;
+
+        Entry(long contentsOffset, int length, long modified, int recordLength) {
+            this.contentsOffset = contentsOffset;
+            this.length = length;
+            this.modified = modified;
+            this.recordLength = recordLength;
+        }
+    }
+
+    private final Logger logger = Logger.getLogger("Songbook");
+
+    private final Path folder;
+
+    private final Path packPath;
+
+    private final Path indexPath;
+
+    /** Reads share the lock, writes, compaction and close take it exclusively. */
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private final Map<String, Entry> entries = new HashMap<>();
+
+    private FileChannel pack;
+
+    /** Length of valid records in pack. */
+    private long end = 0;
+
+    /** Bytes used by superseded and delete records. */
+    private long garbage = 0;
+
+    PackedSongStore(Path folder) throws IOException {
+        this.folder = folder;
+        this.packPath = folder.resolve(PACK_FILE);
+        this.indexPath = folder.resolve(INDEX_FILE);
+        Files.createDirectories(folder);
+
+        pack = FileChannel.open(packPath, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        if (loadIndex() == false) {
+            entries.clear();
+            end = 0;
+            garbage = 0;
+        }
+        recover();
+    }
+
+    @Override
+    public Path getFolder() {
+        return folder;
+    }
+
+    @Override
+    public boolean hasSongFiles() {
+        return false;
+    }
+
+    @Override
+    public Stream<String> listIds() {
+        lock.readLock().lock();
+        try {
+            return new ArrayList<>(entries.keySet()).stream();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean exists(String id) {
+        lock.readLock().lock();
+        try {
+            return entries.containsKey(id);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /** Number of stored songs. */
+    int size() {
+        lock.readLock().lock();
+        try {
+            return entries.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public long getLastModified(String id) throws IOException {
+        lock.readLock().lock();
+        try {
+            return getEntry(id).modified;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public long getSize(String id) throws IOException {
+        lock.readLock().lock();
+        try {
+            return getEntry(id).length;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public ReadableByteChannel read(String id) throws IOException {
+        ByteBuffer buffer;
+        lock.readLock().lock();
+        try {
+            Entry entry = getEntry(id);
+            buffer = ByteBuffer.allocate(entry.length);
+            readFully(pack, buffer, entry.contentsOffset);
+        } finally {
+            lock.readLock().unlock();
+        }
+        return Channels.newChannel(new ByteArrayInputStream(buffer.array()));
+    }
+
+    @Override
+    public ByteBuffer readBytes(String id) throws IOException {
+        lock.readLock().lock();
+        try {
+            // read in heap, a mapping per read would only be released by garbage collection
+            Entry entry = getEntry(id);
+            ByteBuffer buffer = ByteBuffer.allocate(entry.length);
+            readFully(pack, buffer, entry.contentsOffset);
+            buffer.flip();
+            return buffer;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public Optional<Path> getFile(String id) {
+        return Optional.empty();
+    }
+
+    /**
+     * Writes pack up to its last valid record, all songs as they are at one point in time. Writes and compactions
+     * wait for the copy.
+     * @return the number of written bytes.
+     */
+    public long copyTo(OutputStream out) throws IOException {
+        lock.readLock().lock();
+        try {
+            WritableByteChannel target = Channels.newChannel(out);
+            long position = 0;
+            while (position < end) {
+                position += pack.transferTo(position, end - position, target);
+            }
+            return end;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public WritableByteChannel write(String id) {
+        ByteArrayOutputStream contents = new ByteArrayOutputStream();
+        WritableByteChannel channel = Channels.newChannel(contents);
+        return new WritableByteChannel() {
+            @Override
+            public int write(ByteBuffer src) throws IOException {
+                return channel.write(src);
+            }
+
+            @Override
+            public boolean isOpen() {
+                return channel.isOpen();
+            }
+
+            @Override
+            public void close() throws IOException {
+                if (channel.isOpen() == false) return;
+                channel.close();
+                put(id, contents.toByteArray(), System.currentTimeMillis(), true);
+            }
+        };
+    }
+
+    /**
+     * Stores song contents with given modification time.
+     * @param sync true to sync pack before returning, otherwise {@link #sync()} must be called.
+     */
+    void put(String id, byte[] contents, long modified, boolean sync) throws IOException {
+        lock.writeLock().lock();
+        try {
+            append(PUT, id, contents, modified, sync);
+            compactIfNeeded();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void delete(String id) throws IOException {
+        lock.writeLock().lock();
+        try {
+            getEntry(id);
+            append(DELETE, id, new byte[0], System.currentTimeMillis(), true);
+            compactIfNeeded();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /** Syncs records appended without sync. */
+    void sync() throws IOException {
+        lock.writeLock().lock();
+        try {
+            pack.force(false);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        lock.writeLock().lock();
+        try {
+            if (pack.isOpen() == false) return;
+            saveIndex();
+            pack.close();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private Entry getEntry(String id) throws NoSuchFileException {
+        Entry entry = entries.get(id);
+        if (entry == null) throw new NoSuchFileException(id);
+        return entry;
+    }
+
+    /** Appends record and syncs pack if asked, must be called with write lock. */
+    private void append(byte type, String id, byte[] contents, long modified, boolean sync) throws IOException {
+        ByteBuffer record = encode(type, id, contents, modified);
+        int recordLength = record.remaining();
+        long offset = end;
+        while (record.hasRemaining()) {
+            offset += pack.write(record, offset);
+        }
+        if (sync) pack.force(false);
+
+        long contentsOffset = end + HEADER_LENGTH + id.getBytes(StandardCharsets.UTF_8).length;
+        apply(type, id, new Entry(contentsOffset, contents.length, modified, recordLength));
+        end += recordLength;
+    }
+
+    /** Updates entries with a record. */
+    private void apply(byte type, String id, Entry entry) {
+        Entry previous = type == PUT ? entries.put(id, entry) : entries.remove(id);
+        if (previous != null) garbage += previous.recordLength;
+        if (type == DELETE) garbage += entry.recordLength;
+    }
+
+    private static ByteBuffer encode(byte type, String id, byte[] contents, long modified) {
+        byte[] idBytes = id.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer record = ByteBuffer.allocate(HEADER_LENGTH + idBytes.length + contents.length + CRC_LENGTH);
+        record.putInt(RECORD_MAGIC).put(type).putLong(modified).putInt(idBytes.length).putInt(contents.length);
+        record.put(idBytes).put(contents);
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), 0, record.position());
+        record.putInt((int) crc.getValue());
+        record.flip();
+        return record;
+    }
+
+    /** Reads records after the ones known by index, truncates pack at the first invalid one. */
+    private void recover() throws IOException {
+        long size = pack.size();
+        long start = end;
+        ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+        while (end < size) {
+            header.clear();
+            if (end + HEADER_LENGTH > size) break;
+            readFully(pack, header, end);
+            header.flip();
+            int magic = header.getInt();
+            byte type = header.get();
+            long modified = header.getLong();
+            int idLength = header.getInt();
+            int length = header.getInt();
+            long recordLength = (long) HEADER_LENGTH + idLength + length + CRC_LENGTH;
+            if (magic != RECORD_MAGIC || (type != PUT && type != DELETE) || idLength < 0 || length < 0 || end + recordLength > size) break;
+
+            ByteBuffer record = ByteBuffer.allocate((int) recordLength);
+            readFully(pack, record, end);
+            CRC32 crc = new CRC32();
+            crc.update(record.array(), 0, (int) recordLength - CRC_LENGTH);
+            if ((int) crc.getValue() != record.getInt((int) recordLength - CRC_LENGTH)) break;
+
+            String id = new String(record.array(), HEADER_LENGTH, idLength, StandardCharsets.UTF_8);
+            apply(type, id, new Entry(end + HEADER_LENGTH + idLength, length, modified, (int) recordLength));
+            end += recordLength;
+        }
+        if (end < size) {
+            logger.warning("Song pack has an invalid record at " + end + ", removes " + (size - end) + " bytes.");
+            pack.truncate(end);
+            pack.force(true);
+        }
+        if (end > start) {
+            logger.info("Read " + (end - start) + " bytes of songs not in pack index.");
+        }
+    }
+
+    /** Loads index if it's valid, returns false otherwise. */
+    private boolean loadIndex() throws IOException {
+        if (Files.exists(indexPath) == false) return false;
+        ByteBuffer index = ByteBuffer.wrap(Files.readAllBytes(indexPath));
+        if (index.remaining() < 4 + 8 + 8 + 4 + CRC_LENGTH) return false;
+
+        CRC32 crc = new CRC32();
+        crc.update(index.array(), 0, index.limit() - CRC_LENGTH);
+        if ((int) crc.getValue() != index.getInt(index.limit() - CRC_LENGTH)) return false;
+
+        if (index.getInt() != INDEX_MAGIC) return false;
+        end = index.getLong();
+        garbage = index.getLong();
+        if (end > pack.size()) return false;
+        int count = index.getInt();
+        for (int i = 0; i < count; i++) {
+            byte[] idBytes = new byte[index.getInt()];
+            index.get(idBytes);
+            Entry entry = new Entry(index.getLong(), index.getInt(), index.getLong(), index.getInt());
+            entries.put(new String(idBytes, StandardCharsets.UTF_8), entry);
+        }
+        return true;
+    }
+
+    /** Writes index in a temporary file synced and renamed at the end. */
+    private void saveIndex() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ByteBuffer buffer = ByteBuffer.allocate(4 + 8 + 8 + 4);
+        buffer.putInt(INDEX_MAGIC).putLong(end).putLong(garbage).putInt(entries.size());
+        bytes.write(buffer.array());
+        for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+            byte[] idBytes = entry.getKey().getBytes(StandardCharsets.UTF_8);
+            Entry value = entry.getValue();
+            buffer = ByteBuffer.allocate(4 + idBytes.length + 8 + 4 + 8 + 4);
+            buffer.putInt(idBytes.length).put(idBytes).putLong(value.contentsOffset).putInt(value.length).putLong(value.modified).putInt(value.recordLength);
+            bytes.write(buffer.array());
+        }
+        CRC32 crc = new CRC32();
+        crc.update(bytes.toByteArray());
+        bytes.write(ByteBuffer.allocate(CRC_LENGTH).putInt((int) crc.getValue()).array());
+
+        // index is synced before the rename, a crash never leaves a truncated one
+        Path temporary = folder.resolve(INDEX_FILE + ".tmp");
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer contents = ByteBuffer.wrap(bytes.toByteArray());
+            while (contents.hasRemaining()) channel.write(contents);
+            channel.force(true);
+        }
+        Files.move(temporary, indexPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /** Compacts pack when superseded records use more space than live ones, must be called with write lock. */
+    private void compactIfNeeded() throws IOException {
+        if (garbage < MIN_COMPACTION_GARBAGE || garbage < end - garbage) return;
+        long start = System.currentTimeMillis();
+        long previousLength = end;
+
+        Path temporary = folder.resolve(PACK_FILE + ".tmp");
+        Map<String, Entry> compacted = new HashMap<>();
+        long length = 0;
+        try (FileChannel target = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+                Entry value = entry.getValue();
+                ByteBuffer contents = ByteBuffer.allocate(value.length);
+                readFully(pack, contents, value.contentsOffset);
+                ByteBuffer record = encode(PUT, entry.getKey(), contents.array(), value.modified);
+                int recordLength = record.remaining();
+                long contentsOffset = length + recordLength - CRC_LENGTH - value.length;
+                while (record.hasRemaining()) {
+                    length += target.write(record);
+                }
+                compacted.put(entry.getKey(), new Entry(contentsOffset, value.length, value.modified, recordLength));
+            }
+            target.force(true);
+        }
+
+        // an index of the previous pack must not be used with the new one
+        Files.deleteIfExists(indexPath);
+        pack.close();
+        Files.move(temporary, packPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        pack = FileChannel.open(packPath, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        entries.clear();
+        entries.putAll(compacted);
+        end = length;
+        garbage = 0;
+        saveIndex();
+
+        long time = System.currentTimeMillis() - start;
+        logger.info("Compacted song pack from " + previousLength + " to " + length + " bytes in " + time + " ms.");
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) throw new IOException("Unexpected end of song pack");
+            position += read;
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package songbook.song;
+
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.Lock;
+import org.apache.lucene.store.LockObtainFailedException;
+import org.apache.lucene.store.RAMDirectory;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Index directory kept in memory and persisted to a disk directory.
+ * <p>
+ * Files are loaded from disk at creation. When the index writer commits, it syncs the files of the commit:
+ * they are copied to disk at this moment, the segments file being the last one. Files deleted by the
+ * writer are deleted from disk too.
+ * <p>
+ * The disk directory write lock is held until closed, another process can't persist to the same directory.
+ */
+class PersistentRAMDirectory extends RAMDirectory {
+
+    private final Directory diskDirectory;
+
+    private final Lock diskLock;
+
+    PersistentRAMDirectory(Directory diskDirectory) throws IOException {
+        this.diskDirectory = diskDirectory;
+        this.diskLock = diskDirectory.makeLock(IndexWriter.WRITE_LOCK_NAME);
+        if (diskLock.obtain() == false) {
+            throw new LockObtainFailedException("Index directory is used by another process: " + diskLock);
+        }
+        for (String name : diskDirectory.listAll()) {
+            // closing a channel on the lock file would release the lock
+            if (IndexWriter.WRITE_LOCK_NAME.equals(name)) continue;
+            diskDirectory.copy(this, name, name, IOContext.READONCE);
+        }
+    }
+
+    @Override
+    public void sync(Collection<String> names) throws IOException {
+        super.sync(names);
+        Set<String> diskNames = new HashSet<>(Arrays.asList(diskDirectory.listAll()));
+        for (String name : names) {
+            if (diskNames.contains(name)) {
+                diskDirectory.deleteFile(name);
+            }
+            copy(diskDirectory, name, name, IOContext.DEFAULT);
+        }
+        diskDirectory.sync(names);
+    }
+
+    @Override
+    public void deleteFile(String name) throws IOException {
+        super.deleteFile(name);
+        if (Arrays.asList(diskDirectory.listAll()).contains(name)) {
+            diskDirectory.deleteFile(name);
+        }
+    }
+
+    @Override
+    public void close() {
+        super.close();
+        try {
+            diskLock.close();
+        } catch (IOException e) {
+            // released with the process anyway
+        }
+        try {
+            diskDirectory.close();
+        } catch (IOException e) {
+            // nothing more to do
+        }
+    }
+}
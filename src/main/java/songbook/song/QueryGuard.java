@@ -0,0 +1,78 @@
+package songbook.song;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.queryparser.classic.ParseException;
+import org.apache.lucene.queryparser.classic.QueryParser;
+import org.apache.lucene.search.*;
+import org.apache.lucene.util.Version;
+
+/**
+ * Parses user queries and rejects the ones that would cost too much to run.
+ * <p>
+ * Leading wildcards and regular expressions starting with an operator are refused since they enumerate all terms,
+ * wildcard, prefix and range terms are rewritten to their <code>maxExpansions</code> best terms, fuzzy terms must
+ * start with an exact character and a query can't have more than <code>maxClauses</code> terms.
+ */
+class QueryGuard {
+
+    private final int maxClauses;
+
+    private final int maxExpansions;
+
+    QueryGuard(int maxClauses, int maxExpansions) {
+        this.maxClauses = Math.max(1, maxClauses);
+        this.maxExpansions = Math.max(1, maxExpansions);
+    }
+
+    /**
+     * Parses query on given default field.
+     * @throws ParseException if query isn't valid or is too costly.
+     */
+    Query parse(String querystr, String field, Analyzer analyzer) throws ParseException {
+        QueryParser parser = new QueryParser(Version.LUCENE_48, field, analyzer);
+        parser.setAllowLeadingWildcard(false);
+        parser.setFuzzyPrefixLength(1);
+        parser.setMultiTermRewriteMethod(new MultiTermQuery.TopTermsScoringBooleanQueryRewrite(maxExpansions));
+
+        Query query;
+        try {
+            query = parser.parse(querystr);
+        } catch (BooleanQuery.TooManyClauses e) {
+            throw new ParseException("Query has too many terms");
+        }
+        if (check(query) > maxClauses) {
+            throw new ParseException("Query has more than " + maxClauses + " terms");
+        }
+        return query;
+    }
+
+    /** Checks query and returns its number of terms. */
+    private int check(Query query) throws ParseException {
+        if (query instanceof BooleanQuery) {
+            int count = 0;
+            for (BooleanClause clause : ((BooleanQuery) query).getClauses()) {
+                count += check(clause.getQuery());
+            }
+            return count;
+        }
+        if (query instanceof PhraseQuery) {
+            return ((PhraseQuery) query).getTerms().length;
+        }
+        if (query instanceof MultiPhraseQuery) {
+            int count = 0;
+            for (Term[] terms : ((MultiPhraseQuery) query).getTermArrays()) {
+                count += terms.length;
+            }
+            return count;
+        }
+        if (query instanceof RegexpQuery) {
+            // without field, toString gives /regexp/
+            String regexp = query.toString(((RegexpQuery) query).getField());
+            if (regexp.length() < 3 || ".[(*?+{\\".indexOf(regexp.charAt(1)) >= 0) {
+                throw new ParseException("Regular expression must start with a character: " + regexp);
+            }
+        }
+        return 1;
+    }
+}
@@ -0,0 +1,97 @@
+package songbook.song;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Bounded LRU cache of search pages. Each page is tagged with the version of the index reader that
+ * computed it, a page computed on another version is a miss, so the cache is invalidated by any index change.
+ */
+public class SearchCache {
+
+    private static class CachedPage {
+        final long version;
+        final SearchPage page;
+
+        CachedPage(long version, SearchPage page) {
+            this.version = version;
+            this.page = page;
+        }
+    }
+
+    private final int size;
+
+    private final LinkedHashMap<String, CachedPage> entries;
+
+    private long hits = 0;
+
+    private long misses = 0;
+
+    private long evictions = 0;
+
+    public SearchCache(int size) {
+        this.size = size;
+        this.entries = new LinkedHashMap<String, CachedPage>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedPage> eldest) {
+                if (size() > SearchCache.this.size) {
+                    evictions += 1;
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /** Creates key from query and chords (with normalized spaces), filters and page. */
+    static String key(String query, String chords, Map<String, String> filters, String cursor, int pageSize) {
+        String normalized = query == null ? "" : query.trim().replaceAll("\\s+", " ");
+        String normalizedChords = chords == null ? "" : chords.trim().replaceAll("\\s+", " ");
+        return normalized + "\u0000" + normalizedChords + "\u0000" + new TreeMap<>(filters) + "\u0000" + (cursor == null ? "" : cursor) + "\u0000" + pageSize;
+    }
+
+    /** Gets page for key if it was computed on given index version. */
+    synchronized SearchPage get(String key, long version) {
+        CachedPage entry = entries.get(key);
+        if (entry == null || entry.version != version) {
+            misses += 1;
+            return null;
+        }
+        hits += 1;
+        return entry.page;
+    }
+
+    synchronized void put(String key, long version, SearchPage page) {
+        if (size <= 0) return;
+        CachedPage entry = entries.get(key);
+        // an older searcher may finish after a newer one
+        if (entry == null || entry.version <= version) {
+            entries.put(key, new CachedPage(version, page));
+        }
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    public synchronized int getCount() {
+        return entries.size();
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+}
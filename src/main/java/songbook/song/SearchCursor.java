@@ -0,0 +1,71 @@
+package songbook.song;
+
+import org.apache.lucene.search.FieldDoc;
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.search.SortField;
+import org.apache.lucene.util.BytesRef;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Base64;
+
+/**
+ * Encodes the last hit of a search page as an opaque string to continue the search after it.
+ * Only sort values are kept, sorts end with the unique id so the position doesn't depend on internal document
+ * numbers.
+ */
+class SearchCursor {
+
+    private static final byte SCORE = 0;
+
+    private static final byte STRING = 1;
+
+    static String encode(FieldDoc fieldDoc) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(fieldDoc.fields.length);
+            for (Object field : fieldDoc.fields) {
+                if (field instanceof Float) {
+                    out.writeByte(SCORE);
+                    out.writeFloat((Float) field);
+                } else {
+                    out.writeByte(STRING);
+                    out.writeUTF(field == null ? "" : ((BytesRef) field).utf8ToString());
+                }
+            }
+            out.close();
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes.toByteArray());
+        } catch (IOException e) {
+            // can't happen with a byte array
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Decodes a cursor created by {@link #encode} for a search with the given sort.
+     * @throws IllegalArgumentException if cursor isn't valid or was created for another sort.
+     */
+    static FieldDoc decode(String cursor, Sort sort) {
+        SortField[] sortFields = sort.getSort();
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(Base64.getUrlDecoder().decode(cursor)));
+            if (in.readByte() != sortFields.length) throw new IllegalArgumentException("Invalid cursor '" + cursor + "'");
+
+            Object[] fields = new Object[sortFields.length];
+            for (int i = 0; i < fields.length; i++) {
+                byte type = sortFields[i].getType() == SortField.Type.SCORE ? SCORE : STRING;
+                if (in.readByte() != type) throw new IllegalArgumentException("Invalid cursor '" + cursor + "'");
+                fields[i] = type == SCORE ? (Object) in.readFloat() : new BytesRef(in.readUTF());
+            }
+            // the hit of the cursor has the same values, a greatest document number always skips it
+            return new FieldDoc(Integer.MAX_VALUE, Float.NaN, fields);
+        } catch (IOException | RuntimeException e) {
+            // crafted cursors may fail anywhere (Base64, lengths), they're all invalid
+            throw new IllegalArgumentException("Invalid cursor '" + cursor + "'", e);
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package songbook.song;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * One page of search results with the stored fields needed to render them.
+ */
+public class SearchPage {
+
+    public static class Hit {
+
+        public final String id;
+
+        public final String title;
+
+        public final String[] artists;
+
+        public Hit(String id, String title, String[] artists) {
+            this.id = id;
+            this.title = title;
+            this.artists = artists;
+        }
+    }
+
+    public final List<Hit> hits = new ArrayList<>();
+
+    /** Cursor to get the next page, null if it's the last one. */
+    public String nextCursor;
+
+    /** Number of songs matching the search. */
+    public int totalHits;
+
+    /** True if search took too long and was stopped, hits, counts and facets are then partial. */
+    public boolean truncated = false;
+
+    /** For each facet field, the most frequent values among all matching songs with their counts. */
+    public Map<String, Map<String, Integer>> facets = Collections.emptyMap();
+}
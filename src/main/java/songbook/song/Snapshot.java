@@ -0,0 +1,226 @@
+package songbook.song;
+
+import org.apache.lucene.index.IndexCommit;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexInput;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.Optional;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Consistent copy of the index and songs taken while the server keeps writing.
+ * <p>
+ * The last index commit is pinned by the writer deletion policy during the copy so its files can't be removed.
+ * Index files are never modified once written, a snapshot folder hard-links the files already present in the
+ * previous snapshot and only copies new ones. Song files are linked the same way when their size and modification
+ * time didn't change, files being written aren't copied. A pack of songs is copied up to its last record while
+ * writes wait. A song modified during the copy may be newer than its document, the index is synchronized with
+ * the songs when a snapshot is restored and opened.
+ */
+public class Snapshot {
+
+    private static final Logger logger = Logger.getLogger("Songbook");
+
+    private static final String INDEX = "index";
+
+    private static final String SONGS = "songs";
+
+    /** Folder of snapshot. */
+    public final Path folder;
+
+    /** Number of files copied. */
+    public int copied = 0;
+
+    /** Number of bytes copied. */
+    public long copiedBytes = 0;
+
+    /** Number of files linked from the previous snapshot. */
+    public int linked = 0;
+
+    /** Time in milliseconds to create snapshot. */
+    public long time = 0;
+
+    private Snapshot(Path folder) {
+        this.folder = folder;
+    }
+
+    /**
+     * Creates a new snapshot folder in <code>snapshotsFolder</code>, named with the current time. The folder is
+     * renamed once complete, an interrupted snapshot is never used as previous one and a failed one is removed.
+     */
+    public static Snapshot create(IndexDatabase indexDb, SongDatabase songDb, Path snapshotsFolder) throws IOException {
+        long start = System.currentTimeMillis();
+        Files.createDirectories(snapshotsFolder);
+        Path previous = findLast(snapshotsFolder);
+
+        String name = new SimpleDateFormat("yyyyMMdd-HHmmss-SSS").format(new Date(start));
+        Path temporary = snapshotsFolder.resolve(name + ".tmp");
+        Snapshot snapshot = new Snapshot(snapshotsFolder.resolve(name));
+        try {
+            copy(indexDb, songDb, previous, temporary, snapshot);
+            Files.move(temporary, snapshot.folder, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException | RuntimeException e) {
+            deleteFolder(temporary);
+            throw e;
+        }
+
+        snapshot.time = System.currentTimeMillis() - start;
+        logger.info("Created snapshot '" + snapshot.folder + "' in " + snapshot.time + " ms: " + snapshot.copied +
+            " files copied (" + snapshot.copiedBytes + " bytes), " + snapshot.linked + " linked.");
+        return snapshot;
+    }
+
+    /** Copies or links index and songs in temporary folder. */
+    private static void copy(IndexDatabase indexDb, SongDatabase songDb, Path previous, Path temporary, Snapshot snapshot) throws IOException {
+        IndexCommit commit = indexDb.acquireSnapshot();
+        try (FSDirectory target = FSDirectory.open(Files.createDirectories(temporary.resolve(INDEX)).toFile())) {
+            List<String> copiedNames = new ArrayList<>();
+            for (String file : commit.getFileNames()) {
+                Path previousFile = previous == null ? null : previous.resolve(INDEX).resolve(file);
+                if (previousFile != null && Files.exists(previousFile) && link(target.getDirectory().toPath().resolve(file), previousFile)) {
+                    snapshot.linked += 1;
+                } else {
+                    commit.getDirectory().copy(target, file, file, IOContext.READONCE);
+                    copiedNames.add(file);
+                    snapshot.copied += 1;
+                    snapshot.copiedBytes += target.fileLength(file);
+                }
+            }
+            target.sync(copiedNames);
+        } finally {
+            indexDb.releaseSnapshot(commit);
+        }
+
+        Path songs = Files.createDirectories(temporary.resolve(SONGS));
+        Optional<PackedSongStore> pack = songDb.getPack();
+        if (pack.isPresent()) {
+            try (OutputStream out = Files.newOutputStream(songs.resolve(PackedSongStore.PACK_FILE))) {
+                snapshot.copiedBytes += pack.get().copyTo(out);
+            }
+            snapshot.copied += 1;
+            return;
+        }
+        for (Path song : listSongFiles(songDb.getSongDir())) {
+            Path previousSong = previous == null ? null : previous.resolve(SONGS).resolve(song.getFileName());
+            if (previousSong != null && sameFile(song, previousSong) && link(songs.resolve(song.getFileName()), previousSong)) {
+                snapshot.linked += 1;
+            } else {
+                Files.copy(song, songs.resolve(song.getFileName()), StandardCopyOption.COPY_ATTRIBUTES);
+                snapshot.copied += 1;
+                snapshot.copiedBytes += Files.size(song);
+            }
+        }
+    }
+
+    /** Writes a zip with index (pinned commit files) and songs folders to the stream. */
+    public static void zip(IndexDatabase indexDb, SongDatabase songDb, OutputStream out) throws IOException {
+        ZipOutputStream zip = new ZipOutputStream(out);
+        byte[] buffer = new byte[64 * 1024];
+
+        IndexCommit commit = indexDb.acquireSnapshot();
+        try {
+            Directory directory = commit.getDirectory();
+            for (String file : commit.getFileNames()) {
+                zip.putNextEntry(new ZipEntry(INDEX + "/" + file));
+                try (IndexInput input = directory.openInput(file, IOContext.READONCE)) {
+                    long remaining = input.length();
+                    while (remaining > 0) {
+                        int length = (int) Math.min(buffer.length, remaining);
+                        input.readBytes(buffer, 0, length);
+                        zip.write(buffer, 0, length);
+                        remaining -= length;
+                    }
+                }
+                zip.closeEntry();
+            }
+        } finally {
+            indexDb.releaseSnapshot(commit);
+        }
+
+        Optional<PackedSongStore> pack = songDb.getPack();
+        if (pack.isPresent()) {
+            zip.putNextEntry(new ZipEntry(SONGS + "/" + PackedSongStore.PACK_FILE));
+            pack.get().copyTo(zip);
+            zip.closeEntry();
+        } else {
+            for (Path song : listSongFiles(songDb.getSongDir())) {
+                ZipEntry entry = new ZipEntry(SONGS + "/" + song.getFileName());
+                entry.setTime(Files.getLastModifiedTime(song).toMillis());
+                zip.putNextEntry(entry);
+                Files.copy(song, zip);
+                zip.closeEntry();
+            }
+        }
+        zip.finish();
+        zip.flush();
+    }
+
+    /** Last complete snapshot folder, null if there is none. */
+    private static Path findLast(Path snapshotsFolder) throws IOException {
+        try (Stream<Path> folders = Files.list(snapshotsFolder)) {
+            return folders
+                .filter(Files::isDirectory)
+                .filter(folder -> folder.getFileName().toString().endsWith(".tmp") == false)
+                .max(Path::compareTo)
+                .orElse(null);
+        }
+    }
+
+    /** Song files of folder, without the temporary files of songs being written. */
+    private static List<Path> listSongFiles(Path folder) throws IOException {
+        try (Stream<Path> files = Files.list(folder)) {
+            return files
+                .filter(Files::isRegularFile)
+                .filter(file -> file.getFileName().toString().endsWith(SongDatabase.SONG_EXTENSION))
+                .filter(file -> file.getFileName().toString().startsWith(".") == false)
+                .collect(Collectors.toList());
+        }
+    }
+
+    private static void deleteFolder(Path folder) {
+        if (Files.exists(folder) == false) return;
+        try (Stream<Path> paths = Files.walk(folder)) {
+            for (Path path : paths.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) {
+                Files.delete(path);
+            }
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Can't delete '" + folder + "'", e);
+        }
+    }
+
+    private static boolean sameFile(Path file, Path other) throws IOException {
+        return Files.exists(other) &&
+            Files.size(file) == Files.size(other) &&
+            // copies may not keep times precision below millisecond
+            Files.getLastModifiedTime(file).toMillis() == Files.getLastModifiedTime(other).toMillis();
+    }
+
+    /** Creates a hard link, returns false if file system doesn't support it. */
+    private static boolean link(Path link, Path existing) {
+        try {
+            Files.createLink(link, existing);
+            return true;
+        } catch (IOException | UnsupportedOperationException e) {
+            // createLink throws UnsupportedOperationException on file systems without links
+            logger.log(Level.FINE, "Can't link '" + existing + "', copies it", e);
+            return false;
+        }
+    }
+}
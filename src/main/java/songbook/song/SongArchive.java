@@ -0,0 +1,261 @@
+package songbook.song;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Song library as a zip archive, to move songs between servers: one <code>songs/id.song</code> entry per song
+ * followed by a <code>manifest.json</code> entry with the catalog entries of the written songs. The manifest is
+ * written last, once the songs are known: songs deleted during an export aren't in it, and an archive without
+ * manifest is incomplete.
+ * <p>
+ * Both ways are streamed, an archive is never held in memory. When importing, songs are read from the archive
+ * one after the other and written, parsed and indexed in parallel by a few threads, only a bounded number of
+ * songs waits for them. The index is committed once at the end.
+ */
+public class SongArchive {
+
+    public static final String MANIFEST = "manifest.json";
+
+    public static final String SONGS = "songs";
+
+    /** Larger songs in an archive are counted as errors. */
+    static final int MAX_SONG_SIZE = 1024 * 1024;
+
+    /** Song count is written first in manifest, it's found in its first bytes. */
+    private static final Pattern MANIFEST_COUNT = Pattern.compile("\"count\"\\s*:\\s*(\\d+)");
+
+    private static final Logger logger = Logger.getLogger("Songbook");
+
+    private SongArchive() {
+    }
+
+    /**
+     * Writes all songs in catalog as a zip archive to the stream, songs deleted meanwhile are skipped.
+     * @return the number of written songs.
+     */
+    public static int exportSongs(SongDatabase songDb, OutputStream out) throws IOException {
+        long start = System.currentTimeMillis();
+        List<SongCatalog.Entry> entries = new ArrayList<>(songDb.getCatalog().getEntries());
+        entries.sort(Comparator.comparing(entry -> entry.id));
+
+        ZipOutputStream zip = new ZipOutputStream(out);
+        byte[] buffer = new byte[64 * 1024];
+        List<SongCatalog.Entry> written = new ArrayList<>(entries.size());
+        for (SongCatalog.Entry entry : entries) {
+            ByteBuffer bytes = songDb.getSongBytes(entry.id);
+            if (bytes == null) continue;
+
+            ZipEntry zipEntry = new ZipEntry(SONGS + "/" + entry.id + SongDatabase.SONG_EXTENSION);
+            zipEntry.setTime(entry.modified);
+            zip.putNextEntry(zipEntry);
+            while (bytes.hasRemaining()) {
+                int length = Math.min(buffer.length, bytes.remaining());
+                bytes.get(buffer, 0, length);
+                zip.write(buffer, 0, length);
+            }
+            zip.closeEntry();
+            written.add(entry);
+        }
+
+        zip.putNextEntry(new ZipEntry(MANIFEST));
+        // writer isn't closed, it would close the zip
+        Writer manifest = new OutputStreamWriter(zip, StandardCharsets.UTF_8);
+        manifest.write("{\"count\":" + written.size() + ",\"songs\":[\n");
+        for (int i = 0; i < written.size(); i++) {
+            manifest.write(toJson(written.get(i)));
+            manifest.write(i < written.size() - 1 ? ",\n" : "\n");
+        }
+        manifest.write("]}\n");
+        manifest.flush();
+        zip.closeEntry();
+        zip.finish();
+        zip.flush();
+
+        logger.info("Exported " + written.size() + " songs in archive in " + (System.currentTimeMillis() - start) + " ms.");
+        return written.size();
+    }
+
+    /**
+     * Reads songs from a zip archive written by {@link #exportSongs}, then writes, parses and indexes them in
+     * parallel. Songs with the same id are replaced. Songs which can't be imported are counted as errors and the
+     * import continues. Songs imported before a failure of the archive are kept and committed.
+     * @param listener called by the reading thread when the progress changed.
+     */
+    public static void importSongs(InputStream in, SongDatabase songDb, IndexDatabase indexDb, SongImport progress, Runnable listener) throws IOException {
+        // writers mostly wait for their song to be synced, more of them share each directory sync
+        int threads = Math.max(4, 2 * Runtime.getRuntime().availableProcessors());
+        ExecutorService executor = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "Songbook Song Import");
+            thread.setDaemon(true);
+            return thread;
+        });
+        // read songs waiting to be imported
+        Semaphore waiting = new Semaphore(threads * 4);
+
+        Exception failure = null;
+        boolean manifest = false;
+        try {
+            ZipInputStream zip = new ZipInputStream(in, StandardCharsets.UTF_8);
+            ZipEntry entry;
+            while ((entry = zip.getNextEntry()) != null) {
+                String name = entry.getName();
+                if (entry.isDirectory()) continue;
+
+                if (name.equals(MANIFEST)) {
+                    manifest = true;
+                    progress.setTotal(readCount(zip));
+                } else if (name.startsWith(SONGS + "/") && name.endsWith(SongDatabase.SONG_EXTENSION)) {
+                    progress.incrementRead();
+                    String id = name.substring(SONGS.length() + 1, name.length() - SongDatabase.SONG_EXTENSION.length());
+                    byte[] contents = readSong(zip);
+                    if (isValidId(id) == false || contents == null) {
+                        logger.warning("Can't import '" + name + "': " + (contents == null ? "song is too large" : "invalid id"));
+                        progress.incrementErrors();
+                    } else {
+                        waiting.acquire();
+                        executor.execute(() -> {
+                            try {
+                                importSong(songDb, indexDb, id, contents);
+                                progress.incrementImported();
+                            } catch (IOException | RuntimeException e) {
+                                logger.log(Level.WARNING, "Can't import song '" + id + "'", e);
+                                progress.incrementErrors();
+                            } finally {
+                                waiting.release();
+                            }
+                        });
+                    }
+                }
+                listener.run();
+            }
+            // a cut archive looks like a complete one with less songs, but its manifest is missing
+            if (manifest == false) {
+                throw new EOFException("Archive ends after " + progress.getRead() + " songs without manifest");
+            }
+            if (progress.getRead() < progress.getTotal()) {
+                throw new EOFException("Archive has " + progress.getRead() + " of " + progress.getTotal() + " songs");
+            }
+        } catch (IOException | RuntimeException e) {
+            failure = e;
+        } catch (InterruptedException e) {
+            failure = new InterruptedIOException("Import interrupted");
+        } finally {
+            executor.shutdown();
+        }
+
+        try {
+            while (executor.awaitTermination(1, TimeUnit.SECONDS) == false) {
+                listener.run();
+            }
+            // songs written before a failure are committed too, the index stays in line with the store
+            progress.committing();
+            listener.run();
+            songDb.saveCatalog();
+            indexDb.commit();
+        } catch (IOException | RuntimeException e) {
+            if (failure == null) failure = e;
+        } catch (InterruptedException e) {
+            if (failure == null) failure = new InterruptedIOException("Import interrupted");
+        }
+
+        if (failure != null) {
+            logger.log(Level.SEVERE, "Can't import songs archive", failure);
+            progress.failed(failure);
+            listener.run();
+            if (failure instanceof IOException) throw (IOException) failure;
+            throw (RuntimeException) failure;
+        }
+        progress.done();
+        long time = Math.max(1, progress.getTime());
+        logger.info("Imported " + progress.getImported() + " songs in " + time + " ms (" + (progress.getImported() * 1000L / time) +
+            " songs/s), " + progress.getErrors() + " errors.");
+        listener.run();
+    }
+
+    /** Writes song, durable once the channel is closed (but not its catalog entry), then indexes it without commit. */
+    private static void importSong(SongDatabase songDb, IndexDatabase indexDb, String id, byte[] contents) throws IOException {
+        WritableByteChannel channel = songDb.writeChannelForSong(id, false);
+        if (channel == null) throw new IOException("Can't write song");
+        try (WritableByteChannel song = channel) {
+            ByteBuffer bytes = ByteBuffer.wrap(contents);
+            while (bytes.hasRemaining()) song.write(bytes);
+        }
+        indexDb.indexSong(id, new String(contents, StandardCharsets.UTF_8));
+    }
+
+    /** Reads current song entry, returns null if it's larger than {@link #MAX_SONG_SIZE}. */
+    private static byte[] readSong(ZipInputStream zip) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(8 * 1024);
+        byte[] buffer = new byte[8 * 1024];
+        int length;
+        while ((length = zip.read(buffer)) >= 0) {
+            // remaining bytes are skipped by next entry
+            if (bytes.size() + length > MAX_SONG_SIZE) return null;
+            bytes.write(buffer, 0, length);
+        }
+        return bytes.toByteArray();
+    }
+
+    /** Reads song count from the beginning of manifest, 0 if not found. */
+    private static int readCount(ZipInputStream zip) throws IOException {
+        byte[] head = new byte[256];
+        int length = 0;
+        int read;
+        while (length < head.length && (read = zip.read(head, length, head.length - length)) >= 0) {
+            length += read;
+        }
+        Matcher matcher = MANIFEST_COUNT.matcher(new String(head, 0, length, StandardCharsets.UTF_8));
+        if (matcher.find() == false) return 0;
+        try {
+            return Integer.parseInt(matcher.group(1));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /** Id must be a plain file name, archive entries can't write elsewhere. */
+    private static boolean isValidId(String id) {
+        return id.isEmpty() == false && id.startsWith(".") == false && id.indexOf('/') < 0 && id.indexOf('\\') < 0;
+    }
+
+    private static String toJson(SongCatalog.Entry entry) {
+        StringBuilder out = new StringBuilder();
+        out.append("{\"id\":");
+        SongUtils.appendJsonString(out, entry.id);
+        out.append(",\"size\":").append(entry.size);
+        out.append(",\"modified\":").append(entry.modified);
+        out.append(",\"title\":");
+        SongUtils.appendJsonString(out, entry.title == null ? "" : entry.title);
+        out.append(",\"artists\":[");
+        for (int i = 0; i < entry.artists.size(); i++) {
+            if (i > 0) out.append(",");
+            SongUtils.appendJsonString(out, entry.artists.get(i));
+        }
+        out.append("]}");
+        return out.toString();
+    }
+}
@@ -0,0 +1,198 @@
+package songbook.song;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * LRU cache of song contents bounded by the memory used by contents. Compressed song bytes (by content encoding)
+ * are kept with the contents of their song and share the same bound.
+ * <p>
+ * Each invalidation increments a version, contents read from a file are only put in cache if no invalidation
+ * happened since the read started, so a read racing with a write can't keep the old contents in cache.
+ * <p>
+ * Hits and misses of contents and of compressed bytes are counted separately.
+ */
+public class SongCache {
+
+    /** Estimated memory used by an entry besides its characters. */
+    private static final int ENTRY_OVERHEAD = 96;
+
+    /** Estimated memory used by compressed bytes besides them. */
+    private static final int ENCODED_OVERHEAD = 64;
+
+    private static class Entry {
+        /** Song contents, null if only compressed bytes are cached. */
+        String contents;
+
+        /** Compressed song bytes by content encoding, null if there are none. */
+        Map<String, byte[]> encoded;
+
+        long weight;
+    }
+
+    private final long maxBytes;
+
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    private long bytes = 0;
+
+    private long version = 0;
+
+    private long hits = 0;
+
+    private long misses = 0;
+
+    private long encodedHits = 0;
+
+    private long encodedMisses = 0;
+
+    private long evictions = 0;
+
+    public SongCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    private static long weight(String id, Entry entry) {
+        long weight = 2L * id.length() + ENTRY_OVERHEAD;
+        if (entry.contents != null) weight += 2L * entry.contents.length();
+        if (entry.encoded != null) {
+            for (Map.Entry<String, byte[]> encoded : entry.encoded.entrySet()) {
+                weight += encoded.getValue().length + ENCODED_OVERHEAD;
+            }
+        }
+        return weight;
+    }
+
+    /** Gets contents of song, null if it isn't in cache. */
+    synchronized String get(String id) {
+        Entry entry = entries.get(id);
+        String contents = entry == null ? null : entry.contents;
+        if (contents != null) {
+            hits += 1;
+        } else {
+            misses += 1;
+        }
+        return contents;
+    }
+
+    /** Gets song bytes compressed with encoding, null if they aren't in cache. */
+    synchronized byte[] getEncoded(String id, String encoding) {
+        Entry entry = entries.get(id);
+        byte[] encoded = entry == null || entry.encoded == null ? null : entry.encoded.get(encoding);
+        if (encoded != null) {
+            encodedHits += 1;
+        } else {
+            encodedMisses += 1;
+        }
+        return encoded;
+    }
+
+    /** Version to give to {@link #put(String, String, long)} for contents read after this call. */
+    synchronized long getVersion() {
+        return version;
+    }
+
+    /** Puts contents read since <code>readVersion</code>, unless song was invalidated meanwhile. */
+    synchronized void put(String id, String contents, long readVersion) {
+        if (readVersion != version) return;
+        Entry entry = getOrCreate(id);
+        entry.contents = contents;
+        update(id, entry);
+    }
+
+    /** Puts compressed bytes read since <code>readVersion</code>, unless song was invalidated meanwhile. */
+    synchronized void putEncoded(String id, String encoding, byte[] encoded, long readVersion) {
+        if (readVersion != version) return;
+        Entry entry = getOrCreate(id);
+        if (entry.encoded == null) entry.encoded = new HashMap<>(4);
+        entry.encoded.put(encoding, encoded);
+        update(id, entry);
+    }
+
+    private Entry getOrCreate(String id) {
+        Entry entry = entries.get(id);
+        if (entry == null) {
+            entry = new Entry();
+            entries.put(id, entry);
+        }
+        return entry;
+    }
+
+    /** Updates weight of changed entry and evicts least recently used ones. */
+    private void update(String id, Entry entry) {
+        bytes -= entry.weight;
+        entry.weight = weight(id, entry);
+        bytes += entry.weight;
+        if (entry.weight > maxBytes) {
+            entries.remove(id);
+            bytes -= entry.weight;
+            return;
+        }
+
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (bytes > maxBytes && iterator.hasNext()) {
+            Entry eldest = iterator.next();
+            bytes -= eldest.weight;
+            iterator.remove();
+            evictions += 1;
+        }
+    }
+
+    synchronized void invalidate(String id) {
+        version += 1;
+        Entry previous = entries.remove(id);
+        if (previous != null) bytes -= previous.weight;
+    }
+
+    public synchronized void clear() {
+        version += 1;
+        entries.clear();
+        bytes = 0;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    public synchronized int getCount() {
+        return entries.size();
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEncodedHits() {
+        return encodedHits;
+    }
+
+    public synchronized long getEncodedMisses() {
+        return encodedMisses;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    /** Ratio of hits among gets of contents. */
+    public synchronized double getHitRate() {
+        long total = hits + misses;
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    /** Ratio of hits among gets of compressed bytes. */
+    public synchronized double getEncodedHitRate() {
+        long total = encodedHits + encodedMisses;
+        return total == 0 ? 0 : (double) encodedHits / total;
+    }
+}
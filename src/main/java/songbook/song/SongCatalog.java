@@ -0,0 +1,389 @@
+package songbook.song;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.BufferUnderflowException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * Manifest of stored songs (id, size, modification time, title and artists), so songs can be listed and
+ * checked without reading the store.
+ * <p>
+ * The catalog is a checksummed file written in a temporary file renamed over the previous one. Each change
+ * appends a checksummed record to a journal file, synced before returning. Like song writes, concurrent changes
+ * share journal syncs: one sync makes durable all the records appended before it. At opening, the catalog is loaded
+ * and the journal is replayed, the first incomplete or corrupted record and everything after are removed.
+ * The journal is merged in the catalog when it gets long and at close.
+ * <p>
+ * Only the catalog written at close records the modification time of the store folder. An opening appends a record to
+ * the journal, so after a crash the journal isn't empty: a catalog found closed with the same store time can be trusted
+ * without checking the store.
+ */
+public class SongCatalog {
+
+    public static final String CATALOG_EXTENSION = ".catalog";
+
+    public static final String JOURNAL_EXTENSION = ".journal";
+
+    /** Journal is merged in catalog after this number of records. */
+    static final int MAX_JOURNAL_RECORDS = 1000;
+
+    private static final int CATALOG_MAGIC = 0x53424332;
+
+    private static final int RECORD_MAGIC = 0x53424a31;
+
+    private static final byte PUT = 0;
+
+    private static final byte DELETE = 1;
+
+    /** Record appended when catalog is opened, without payload. */
+    private static final byte OPENED = 2;
+
+    /** magic, type and payload length. */
+    private static final int HEADER_LENGTH = 4 + 1 + 4;
+
+    private static final int CRC_LENGTH = 4;
+
+    /** Catalog entry of a song. */
+    public static class Entry {
+        public final String id;
+        /** Size of stored song in bytes. */
+        public final long size;
+        /** Last modification time of song in milliseconds. */
+        public final long modified;
+        public final String title;
+        public final List<String> artists;
+
+        public Entry(String id, long size, long modified, String title, List<String> artists) {
+            this.id = id;
+            this.size = size;
+            this.modified = modified;
+            this.title = title;
+            this.artists = Collections.unmodifiableList(new ArrayList<>(artists));
+        }
+    }
+
+    private final Logger logger = Logger.getLogger("Songbook");
+
+    private final Path catalogPath;
+
+    private final Path journalPath;
+
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+    /** True if catalog was loaded, false if it was missing or corrupted. */
+    private final boolean loaded;
+
+    /** True if catalog was loaded with an empty journal. */
+    private final boolean closed;
+
+    /** Store folder modification time written at close, -1 if catalog wasn't closed. */
+    private long storeTime = -1;
+
+    private FileChannel journal;
+
+    /** Valid length of journal. */
+    private long journalEnd = 0;
+
+    private int journalRecords = 0;
+
+    /** Number of records appended since opening, never reset, written with this lock. */
+    private volatile long appendedRecords = 0;
+
+    /** Number of appended records known to be durable, guarded by syncLock. */
+    private long syncedRecords = 0;
+
+    /** Journal syncs are done one at a time, outside of this lock so appends continue meanwhile. */
+    private final Object syncLock = new Object();
+
+    /** Opens catalog stored in <code>path.catalog</code> and <code>path.journal</code>. */
+    public SongCatalog(Path path) throws IOException {
+        this.catalogPath = path.resolveSibling(path.getFileName() + CATALOG_EXTENSION);
+        this.journalPath = path.resolveSibling(path.getFileName() + JOURNAL_EXTENSION);
+        if (path.getParent() != null) Files.createDirectories(path.getParent());
+
+        loaded = loadCatalog();
+        if (loaded == false) entries.clear();
+
+        journal = FileChannel.open(journalPath, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        if (loaded) {
+            closed = journal.size() == 0;
+            replayJournal();
+        } else {
+            closed = false;
+            journal.truncate(0);
+        }
+        syncJournal(appendRecord(OPENED, new byte[0]));
+    }
+
+    /** False if catalog was missing or corrupted when opened, it must then be rebuilt from the store. */
+    public boolean isLoaded() {
+        return loaded;
+    }
+
+    /**
+     * True if catalog was written by {@link #close(long)} with this store time and not changed since: its entries
+     * are the ones of the store unless songs were changed in place while the catalog was closed.
+     */
+    public boolean isClosedWith(long storeTime) {
+        return closed && storeTime >= 0 && this.storeTime == storeTime;
+    }
+
+    public Entry get(String id) {
+        return entries.get(id);
+    }
+
+    public boolean contains(String id) {
+        return entries.containsKey(id);
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public Stream<String> listIds() {
+        return new ArrayList<>(entries.keySet()).stream();
+    }
+
+    public Collection<Entry> getEntries() {
+        return Collections.unmodifiableCollection(entries.values());
+    }
+
+    /**
+     * Adds or replaces entry.
+     * @param sync true to sync journal before returning, otherwise {@link #save()} must be called.
+     */
+    public void put(Entry entry, boolean sync) throws IOException {
+        long record;
+        synchronized (this) {
+            entries.put(entry.id, entry);
+            record = appendRecord(PUT, encodeEntry(entry));
+        }
+        if (sync) syncJournal(record);
+    }
+
+    /**
+     * Removes entry of song.
+     * @param sync true to sync journal before returning, otherwise {@link #save()} must be called.
+     */
+    public void remove(String id, boolean sync) throws IOException {
+        long record;
+        synchronized (this) {
+            if (entries.remove(id) == null) return;
+            record = appendRecord(DELETE, id.getBytes(StandardCharsets.UTF_8));
+        }
+        if (sync) syncJournal(record);
+    }
+
+    /** Writes all entries in catalog and empties journal. */
+    public synchronized void save() throws IOException {
+        write(-1);
+    }
+
+    /**
+     * Writes catalog and closes it.
+     * @param storeTime modification time of the store folder, once the store is closed.
+     */
+    public synchronized void close(long storeTime) throws IOException {
+        if (journal.isOpen() == false) return;
+        write(storeTime);
+        journal.close();
+    }
+
+    private void write(long storeTime) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        bytes.write(ByteBuffer.allocate(16).putInt(CATALOG_MAGIC).putInt(entries.size()).putLong(storeTime).array());
+        for (Entry entry : entries.values()) {
+            bytes.write(encodeEntry(entry));
+        }
+        CRC32 crc = new CRC32();
+        crc.update(bytes.toByteArray());
+        bytes.write(ByteBuffer.allocate(CRC_LENGTH).putInt((int) crc.getValue()).array());
+
+        Path temporary = catalogPath.resolveSibling(catalogPath.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+            while (buffer.hasRemaining()) channel.write(buffer);
+            channel.force(true);
+        }
+        Files.move(temporary, catalogPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        syncFolder();
+
+        // journal is emptied only once catalog contains its changes
+        journal.truncate(0);
+        journal.force(true);
+        journalEnd = 0;
+        journalRecords = 0;
+        synchronized (syncLock) {
+            syncedRecords = appendedRecords;
+        }
+    }
+
+    /**
+     * Appends record without syncing it, must be called with this lock.
+     * @return the number of the record, to give to {@link #syncJournal(long)}.
+     */
+    private long appendRecord(byte type, byte[] payload) throws IOException {
+        ByteBuffer record = ByteBuffer.allocate(HEADER_LENGTH + payload.length + CRC_LENGTH);
+        record.putInt(RECORD_MAGIC).put(type).putInt(payload.length).put(payload);
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), 0, record.position());
+        record.putInt((int) crc.getValue());
+        record.flip();
+
+        while (record.hasRemaining()) {
+            journalEnd += journal.write(record, journalEnd);
+        }
+        journalRecords += 1;
+        appendedRecords += 1;
+        long number = appendedRecords;
+
+        if (journalRecords >= MAX_JOURNAL_RECORDS) save();
+        return number;
+    }
+
+    /** Makes record durable, with a sync shared by all the records appended before it starts. */
+    private void syncJournal(long record) throws IOException {
+        synchronized (syncLock) {
+            // a sync started after the record was appended already made it durable
+            if (syncedRecords >= record) return;
+            long appended = appendedRecords;
+            journal.force(false);
+            syncedRecords = appended;
+        }
+    }
+
+    /** Syncs folder so the catalog rename is durable before the journal is emptied. */
+    private void syncFolder() throws IOException {
+        Path folder = catalogPath.toAbsolutePath().getParent();
+        try (FileChannel channel = FileChannel.open(folder, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // some systems (Windows) can't open a folder
+            if (Files.isDirectory(folder) == false) throw e;
+        }
+    }
+
+    /** Loads catalog if it's valid, returns false otherwise. */
+    private boolean loadCatalog() throws IOException {
+        if (Files.exists(catalogPath) == false) return false;
+        ByteBuffer catalog = ByteBuffer.wrap(Files.readAllBytes(catalogPath));
+        if (catalog.remaining() < 16 + CRC_LENGTH) return false;
+
+        CRC32 crc = new CRC32();
+        crc.update(catalog.array(), 0, catalog.limit() - CRC_LENGTH);
+        if ((int) crc.getValue() != catalog.getInt(catalog.limit() - CRC_LENGTH)) {
+            logger.warning("Song catalog '" + catalogPath + "' is corrupted, it will be rebuilt.");
+            return false;
+        }
+
+        if (catalog.getInt() != CATALOG_MAGIC) return false;
+        int count = catalog.getInt();
+        storeTime = catalog.getLong();
+        catalog.limit(catalog.limit() - CRC_LENGTH);
+        try {
+            for (int i = 0; i < count; i++) {
+                Entry entry = decodeEntry(catalog);
+                entries.put(entry.id, entry);
+            }
+        } catch (BufferUnderflowException e) {
+            return false;
+        }
+        return true;
+    }
+
+    /** Replays journal records, truncates journal at the first invalid one. */
+    private void replayJournal() throws IOException {
+        long size = journal.size();
+        ByteBuffer bytes = ByteBuffer.allocate((int) size);
+        while (bytes.hasRemaining() && journal.read(bytes, bytes.position()) >= 0) { }
+        bytes.flip();
+
+        while (journalEnd + HEADER_LENGTH <= size) {
+            int offset = (int) journalEnd;
+            int magic = bytes.getInt(offset);
+            byte type = bytes.get(offset + 4);
+            int length = bytes.getInt(offset + 5);
+            long recordLength = (long) HEADER_LENGTH + length + CRC_LENGTH;
+            if (magic != RECORD_MAGIC || (type != PUT && type != DELETE && type != OPENED) || length < 0 || journalEnd + recordLength > size) break;
+
+            CRC32 crc = new CRC32();
+            crc.update(bytes.array(), offset, (int) recordLength - CRC_LENGTH);
+            if ((int) crc.getValue() != bytes.getInt(offset + (int) recordLength - CRC_LENGTH)) break;
+
+            ByteBuffer payload = ByteBuffer.wrap(bytes.array(), offset + HEADER_LENGTH, length);
+            if (type == PUT) {
+                Entry entry;
+                try {
+                    entry = decodeEntry(payload);
+                } catch (BufferUnderflowException e) {
+                    break;
+                }
+                entries.put(entry.id, entry);
+            } else if (type == DELETE) {
+                entries.remove(new String(bytes.array(), offset + HEADER_LENGTH, length, StandardCharsets.UTF_8));
+            }
+            journalEnd += recordLength;
+            journalRecords += 1;
+        }
+        if (journalEnd < size) {
+            logger.warning("Song catalog journal has an invalid record at " + journalEnd + ", removes " + (size - journalEnd) + " bytes.");
+            journal.truncate(journalEnd);
+            journal.force(true);
+        }
+    }
+
+    private static byte[] encodeEntry(Entry entry) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        writeString(bytes, entry.id);
+        bytes.write(ByteBuffer.allocate(8 + 8).putLong(entry.size).putLong(entry.modified).array());
+        writeString(bytes, entry.title == null ? "" : entry.title);
+        bytes.write(ByteBuffer.allocate(4).putInt(entry.artists.size()).array());
+        for (String artist : entry.artists) {
+            writeString(bytes, artist);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static Entry decodeEntry(ByteBuffer buffer) {
+        String id = readString(buffer);
+        long size = buffer.getLong();
+        long modified = buffer.getLong();
+        String title = readString(buffer);
+        int artistCount = buffer.getInt();
+        List<String> artists = new ArrayList<>(artistCount);
+        for (int i = 0; i < artistCount; i++) {
+            artists.add(readString(buffer));
+        }
+        return new Entry(id, size, modified, title, artists);
+    }
+
+    private static void writeString(ByteArrayOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.write(ByteBuffer.allocate(4).putInt(bytes.length).array());
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0 || length > buffer.remaining()) throw new BufferUnderflowException();
+        String value = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, StandardCharsets.UTF_8);
+        buffer.position(buffer.position() + length);
+        return value;
+    }
+}
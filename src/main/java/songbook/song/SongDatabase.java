@@ -1,98 +1,578 @@
 package songbook.song;
 
+import org.apache.lucene.document.Document;
 import songbook.server.ChannelUtil;
 
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.OutputStream;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.nio.channels.ReadableByteChannel;
 import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
 import java.text.Normalizer;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.stream.Collectors;
 import java.util.stream.Stream;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
 
-public class SongDatabase {
+public class SongDatabase implements Closeable {
 
     public static String SONG_EXTENSION = ".song";
 
+    /** Default maximum memory (in bytes) used by cached song contents. */
+    public static final long DEFAULT_CACHE_SIZE = 16 * 1024 * 1024;
+
+    /** Created in pack folder once song files were imported in pack. */
+    static final String MIGRATED_MARKER = "songs.migrated";
+
     private final Logger logger = Logger.getLogger("Songbook");
 
     private Path songDir;
 
+    private final SongStore store;
+
+    /** Same store when songs are packed, null otherwise. */
+    private final PackedSongStore pack;
+
+    private final SongCache cache;
+
+    /**
+     * Ids of stored songs, loaded once from the catalog and kept current by writes, deletions and
+     * {@link #invalidate(String)}, checking that a song exists doesn't access the store.
+     */
+    private final Set<String> ids = ConcurrentHashMap.newKeySet();
+
+    /** Manifest of stored songs, kept next to the store folder, songs are listed from it. */
+    private final SongCatalog catalog;
+
+    /** Revisions of songs written by this database, null if they aren't kept. */
+    private final SongHistory history;
+
     public SongDatabase(Path songDir) throws IOException {
+        this(songDir, DEFAULT_CACHE_SIZE);
+    }
+
+    /**
+     * Stores songs as files in songDir.
+     * @param cacheSize maximum memory in bytes used to keep song contents, 0 disables the cache.
+     */
+    public SongDatabase(Path songDir, long cacheSize) throws IOException {
+        this(songDir, null, cacheSize);
+    }
+
+    /**
+     * Stores songs in a pack in packDir if it isn't null, or as files in songDir otherwise. The song files of songDir
+     * are imported once in a new pack.
+     * @param cacheSize maximum memory in bytes used to keep song contents, 0 disables the cache.
+     */
+    public SongDatabase(Path songDir, Path packDir, long cacheSize) throws IOException {
+        this(songDir, packDir, null, cacheSize);
+    }
+
+    /**
+     * Stores songs in a pack in packDir if it isn't null, or as files in songDir otherwise, and keeps the revisions
+     * of written songs in historyDir if it isn't null.
+     * @param cacheSize maximum memory in bytes used to keep song contents, 0 disables the cache.
+     */
+    public SongDatabase(Path songDir, Path packDir, Path historyDir, long cacheSize) throws IOException {
         this.songDir = songDir;
+        this.cache = new SongCache(cacheSize);
+        this.history = historyDir == null ? null : new SongHistory(historyDir);
+
+        if (packDir == null) {
+            store = new DirectorySongStore(songDir);
+            pack = null;
+        } else {
+            PackedSongStore packedStore = new PackedSongStore(packDir);
+            // songs are imported only once, an emptied pack must stay empty
+            Path migrated = packDir.resolve(MIGRATED_MARKER);
+            if (Files.exists(migrated) == false) {
+                if (packedStore.size() == 0 && Files.isDirectory(songDir)) importSongs(packedStore);
+                Files.createFile(migrated);
+            }
+            store = packedStore;
+            pack = packedStore;
+        }
+
+        catalog = new SongCatalog(store.getFolder());
+        if (catalog.isLoaded() == false) {
+            logger.info("Builds song catalog of '" + store.getFolder() + "'.");
+        }
+        // a catalog closed with the store is trusted as long as no song was added, removed or renamed meanwhile,
+        // otherwise (or after a crash between a song write and its catalog record) the modification time and size
+        // of each song are compared with its entry, only changed songs are read. Songs edited in place while the
+        // server was stopped are found by the watcher
+        if (catalog.isClosedWith(getStoreTime()) == false) {
+            checkCatalog();
+        }
+        loadIds();
+    }
+
+    /** Modification time of the store folder, -1 if it doesn't exist. */
+    private long getStoreTime() throws IOException {
+        try {
+            return Files.getLastModifiedTime(store.getFolder()).toMillis();
+        } catch (NoSuchFileException e) {
+            return -1;
+        }
+    }
 
-        if (Files.exists(songDir) == false) {
-            Files.createDirectories(songDir);
+    private void loadIds() {
+        catalog.listIds().forEach(ids::add);
+    }
+
+    /** Updates registration of song from the store. */
+    private void register(String id) {
+        if (store.exists(id)) {
+            ids.add(id);
+        } else {
+            ids.remove(id);
         }
     }
 
+    /** Folder containing the files of the songs store. */
+    Path getSongDir() {
+        return store.getFolder();
+    }
+
+    /** Pack containing the songs, empty if songs are stored in their own files. */
+    Optional<PackedSongStore> getPack() {
+        return Optional.ofNullable(pack);
+    }
+
+    /** True if songs are stored in their own files, which can be watched and served directly. */
+    public boolean hasSongFiles() {
+        return store.hasSongFiles();
+    }
+
+    /** Forgets all cached song contents. */
     public void clearCache() {
-        // TODO to implement when a cache will be needed.
+        cache.clear();
     }
 
-    public Stream<String> listSongIds() {
+    /** Forgets cached contents of a song changed outside of this database, and updates its catalog entry. */
+    public void invalidate(String id) {
+        cache.invalidate(id);
+        try {
+            // songs written by this database are already up to date
+            if (isCatalogCurrent(id) == false) updateCatalog(id, true);
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "Can't update catalog for song '" + id + "'", e);
+        }
+        register(id);
+    }
+
+    /**
+     * Forgets all cached contents, checks catalog and reloads song ids, when songs may have changed outside of
+     * this database.
+     */
+    public void reload() {
+        cache.clear();
         try {
-            return Files.list(songDir).map(SongDatabase::extractId);
+            checkCatalog();
         } catch (IOException e) {
-            logger.log(Level.SEVERE, "Can't list songs", e);
-            return Stream.empty();
+            logger.log(Level.SEVERE, "Can't check song catalog", e);
+        }
+        ids.clear();
+        loadIds();
+    }
+
+    /**
+     * Compares catalog with the store (sizes and modification times) and updates entries of added, modified
+     * or removed songs, forgetting their cached contents.
+     * @return the number of updated entries.
+     */
+    public synchronized int checkCatalog() throws IOException {
+        long start = System.currentTimeMillis();
+        Set<String> stored = new HashSet<>();
+        int updated = 0;
+        try (Stream<String> stream = store.listIds()) {
+            for (String id : (Iterable<String>) stream::iterator) {
+                stored.add(id);
+                try {
+                    if (isCatalogCurrent(id) == false) {
+                        cache.invalidate(id);
+                        updateCatalog(id, false);
+                        register(id);
+                        updated += 1;
+                    }
+                } catch (NoSuchFileException e) {
+                    // deleted meanwhile
+                    stored.remove(id);
+                }
+            }
+        }
+        for (String id : catalog.listIds().collect(Collectors.toList())) {
+            if (stored.contains(id) == false) {
+                cache.invalidate(id);
+                catalog.remove(id, false);
+                register(id);
+                updated += 1;
+            }
+        }
+        if (updated > 0) {
+            catalog.save();
+            logger.info("Updated " + updated + " song catalog entries in " + (System.currentTimeMillis() - start) + " ms.");
+        }
+        return updated;
+    }
+
+    /** True if catalog entry of song has the size and modification time of the stored song, or both don't exist. */
+    private boolean isCatalogCurrent(String id) throws IOException {
+        SongCatalog.Entry entry = catalog.get(id);
+        if (entry == null || store.exists(id) == false) return entry == null && store.exists(id) == false;
+        return entry.size == store.getSize(id) && entry.modified == store.getLastModified(id);
+    }
+
+    /** Updates catalog entry of a song from the store. */
+    private void updateCatalog(String id, boolean sync) throws IOException {
+        ByteBuffer bytes;
+        try {
+            bytes = store.readBytes(id);
+        } catch (NoSuchFileException e) {
+            catalog.remove(id, sync);
+            return;
         }
+        byte[] contents = new byte[bytes.remaining()];
+        bytes.get(contents);
+        catalog.put(createCatalogEntry(id, contents), sync);
+    }
+
+    private SongCatalog.Entry createCatalogEntry(String id, byte[] contents) throws IOException {
+        Document document = SongUtils.indexSong(new String(contents, StandardCharsets.UTF_8));
+        return new SongCatalog.Entry(id, contents.length, store.getLastModified(id), document.get("title"), Arrays.asList(document.getValues("artist")));
+    }
+
+    /** Writes catalog with all its entries, after bulk writes. */
+    void saveCatalog() throws IOException {
+        catalog.save();
+    }
+
+    public SongCatalog getCatalog() {
+        return catalog;
+    }
+
+    public SongCache getCache() {
+        return cache;
+    }
+
+    /** Revisions of songs, null if they aren't kept. */
+    public SongHistory getHistory() {
+        return history;
+    }
+
+    /** Ids of songs read from the catalog, the store isn't accessed. */
+    public Stream<String> listSongIds() {
+        return catalog.listIds();
     }
 
     public ReadableByteChannel readChannelForSong(String id) {
         try {
-            return Files.newByteChannel(getSongPath(id));
+            return store.read(id);
         } catch (IOException e) {
             logger.log(Level.SEVERE, "Can't read song '" + id + "'", e);
             return null;
         }
     }
 
+    /**
+     * Opens song file to serve its bytes as they are, without decoding them.
+     * @return the channel or null if song doesn't exist, can't be read or isn't stored in its own file.
+     */
+    public FileChannel openSongFile(String id) {
+        Path file = store.getFile(id).orElse(null);
+        if (file == null) return null;
+        try {
+            return FileChannel.open(file, StandardOpenOption.READ);
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "Can't read song '" + id + "'", e);
+            return null;
+        }
+    }
+
+    /**
+     * Gets song bytes as they are stored, without decoding them.
+     * @return the bytes or null if song doesn't exist or can't be read.
+     */
+    public ByteBuffer getSongBytes(String id) {
+        try {
+            return store.readBytes(id);
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "Can't read song '" + id + "'", e);
+            return null;
+        }
+    }
+
+    /**
+     * Gets song bytes compressed with a content encoding ('gzip' or 'deflate'), they're cached with the contents.
+     * @return the compressed bytes or null if song doesn't exist or can't be read.
+     */
+    public byte[] getEncodedSong(String id, String encoding) {
+        byte[] encoded = cache.getEncoded(id, encoding);
+        if (encoded != null) return encoded;
+
+        long version = cache.getVersion();
+        ByteBuffer bytes = getSongBytes(id);
+        if (bytes == null) return null;
+        try {
+            encoded = encode(bytes, encoding);
+            cache.putEncoded(id, encoding, encoded, version);
+            return encoded;
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "Can't compress song '" + id + "'", e);
+            return null;
+        }
+    }
+
+    private static byte[] encode(ByteBuffer bytes, String encoding) throws IOException {
+        ByteArrayOutputStream encoded = new ByteArrayOutputStream(bytes.remaining() / 2 + 32);
+        OutputStream out;
+        switch (encoding) {
+            case "gzip":
+                out = new GZIPOutputStream(encoded);
+                break;
+            case "deflate":
+                out = new DeflaterOutputStream(encoded);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown content encoding " + encoding);
+        }
+        try (WritableByteChannel channel = Channels.newChannel(out)) {
+            while (bytes.hasRemaining()) channel.write(bytes);
+        }
+        return encoded.toByteArray();
+    }
+
     public String getSongContents(String id) {
+        String contents = cache.get(id);
+        if (contents != null) return contents;
+
+        long version = cache.getVersion();
         try {
             ReadableByteChannel channel = readChannelForSong(id);
-            return channel == null ? null : ChannelUtil.getStringContents(channel);
+            if (channel == null) return null;
+            contents = ChannelUtil.getStringContents(channel);
+            cache.put(id, contents, version);
+            return contents;
         } catch (IOException e) {
             logger.log(Level.SEVERE, "Can't read song '" + id + "'", e);
             return null;
         }
     }
 
+    /** Gets last modification time of song in milliseconds from the catalog, -1 if it can't be read. */
+    public long getLastModified(String id) {
+        SongCatalog.Entry entry = catalog.get(id);
+        if (entry != null) return entry.modified;
+        try {
+            return store.getLastModified(id);
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Opens channel to write song, cached contents are invalidated when it's opened and closed. When the channel is
+     * closed, the catalog entry of the song is updated and written contents are recorded as a new revision.
+     */
     public WritableByteChannel writeChannelForSong(String id) {
+        return writeChannelForSong(id, true);
+    }
+
+    /**
+     * Opens channel to write song like {@link #writeChannelForSong(String)}.
+     * @param syncCatalog false for bulk writes, the catalog isn't synced for each song and
+     *                    {@link #saveCatalog()} must be called once they're written.
+     */
+    WritableByteChannel writeChannelForSong(String id, boolean syncCatalog) {
         try {
-            Path path = getSongPath(id);
-            if (Files.exists(path) == false) {
-                Files.createDirectories(path.getParent());
-            }
-            return Files.newByteChannel(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.SYNC);
+            cache.invalidate(id);
+            recordFirstRevision(id);
+            WritableByteChannel channel = store.write(id);
+            ByteArrayOutputStream written = new ByteArrayOutputStream();
+            return new WritableByteChannel() {
+                @Override
+                public int write(ByteBuffer src) throws IOException {
+                    ByteBuffer bytes = src.duplicate();
+                    int count = channel.write(src);
+                    byte[] copy = new byte[count];
+                    bytes.get(copy);
+                    written.write(copy, 0, count);
+                    return count;
+                }
+
+                @Override
+                public boolean isOpen() {
+                    return channel.isOpen();
+                }
+
+                @Override
+                public void close() throws IOException {
+                    if (channel.isOpen() == false) return;
+                    try {
+                        channel.close();
+                        ids.add(id);
+                    } catch (IOException | RuntimeException e) {
+                        // releases id reserved by generateId if song wasn't stored
+                        register(id);
+                        throw e;
+                    } finally {
+                        // contents read while writing may be partial
+                        cache.invalidate(id);
+                    }
+                    byte[] contents = written.toByteArray();
+                    try {
+                        catalog.put(createCatalogEntry(id, contents), syncCatalog);
+                    } catch (IOException e) {
+                        // song is saved, its entry will be updated by next catalog check
+                        logger.log(Level.SEVERE, "Can't update catalog for song '" + id + "'", e);
+                    }
+                    if (history != null) recordRevision(id, contents, getLastModified(id));
+                }
+            };
         } catch (IOException e) {
             logger.log(Level.SEVERE, "Can't write or create song '" + id + "'", e);
+            register(id);
+            return null;
+        }
+    }
+
+    /** Records current contents of a song without revisions, they would be lost otherwise. */
+    private void recordFirstRevision(String id) {
+        if (history == null || history.hasRevisions(id) || store.exists(id) == false) return;
+        try {
+            ByteBuffer bytes = store.readBytes(id);
+            byte[] contents = new byte[bytes.remaining()];
+            bytes.get(contents);
+            history.record(id, contents, store.getLastModified(id));
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Can't record revision of song '" + id + "'", e);
+        }
+    }
+
+    /** Records written contents, a song is saved even if its revision can't be. */
+    private void recordRevision(String id, byte[] contents, long modified) {
+        try {
+            history.record(id, contents, modified);
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Can't record revision of song '" + id + "'", e);
+        }
+    }
+
+    /**
+     * Gets contents of a song revision, even if the song was deleted since.
+     * @return the contents or null if revision doesn't exist or revisions aren't kept.
+     */
+    public String getRevisionContents(String id, int revision) {
+        if (history == null) return null;
+        try {
+            return new String(history.getContents(id, revision), StandardCharsets.UTF_8);
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "Can't read revision " + revision + " of song '" + id + "'", e);
             return null;
         }
     }
 
     public boolean delete(String id) {
         try {
-            Files.delete(getSongPath(id));
+            store.delete(id);
+            ids.remove(id);
+            cache.invalidate(id);
+            catalog.remove(id, true);
             return true;
         } catch (IOException e) {
             logger.log(Level.SEVERE, "Can't delete song '" + id + "'", e);
+            register(id);
             return false;
         }
     }
 
-    /** Verify if song exists */
+    /** Verify if song exists, without accessing the store */
     public boolean exists(String id) {
-        return Files.exists(getSongPath(id));
+        return ids.contains(id);
+    }
+
+    /** Imports song files of songDir in pack, keeping their modification times. */
+    private void importSongs(PackedSongStore packedStore) throws IOException {
+        long start = System.currentTimeMillis();
+        int count = 0;
+        try (Stream<Path> paths = Files.list(songDir)) {
+            for (Path path : paths.filter(SongDatabase::isSong).collect(Collectors.toList())) {
+                packedStore.put(extractId(path), Files.readAllBytes(path), Files.getLastModifiedTime(path).toMillis(), false);
+                count += 1;
+            }
+        }
+        packedStore.sync();
+        if (count > 0) {
+            logger.info("Imported " + count + " songs from '" + songDir + "' in pack in " + (System.currentTimeMillis() - start) + " ms.");
+        }
+    }
+
+    /**
+     * Writes all songs as files in songDir, with their modification times. Only useful when songs are packed,
+     * the files can be used to open a database without pack.
+     * @return the number of written songs.
+     */
+    public int exportSongs() throws IOException {
+        if (store.hasSongFiles()) return 0;
+        Files.createDirectories(songDir);
+        int count = 0;
+        try (Stream<String> stored = store.listIds()) {
+            for (String id : stored.collect(Collectors.toList())) {
+                try {
+                    ByteBuffer bytes = store.readBytes(id);
+                    Path path = songDir.resolve(id + SONG_EXTENSION);
+                    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                        while (bytes.hasRemaining()) channel.write(bytes);
+                    }
+                    Files.setLastModifiedTime(path, FileTime.fromMillis(store.getLastModified(id)));
+                    count += 1;
+                } catch (NoSuchFileException e) {
+                    // deleted meanwhile
+                }
+            }
+        }
+        logger.info("Exported " + count + " songs to '" + songDir + "'.");
+        return count;
+    }
+
+    @Override
+    public void close() throws IOException {
+        // store may change its folder when closed (packed store index), catalog records the final time
+        try {
+            store.close();
+        } finally {
+            catalog.close(getStoreTime());
+        }
     }
 
     /**
-     * Generate a clean id using title and artist information.
+     * Generate a clean id using title and artist information. The id is reserved, concurrent calls never return the
+     * same one, it exists until the song is written (or its writing fails).
      * @param title
      * @param artist
      * @return
@@ -100,7 +580,7 @@ public class SongDatabase {
     public String generateId(String title, String artist) {
         String id = encodeId(artist + "-" + title);
         int i = 1;
-        while (exists(id)) {
+        while (ids.add(id) == false) {
             id = encodeId(artist + "-" + title + "_" + i);
             i++;
         }
@@ -121,15 +601,11 @@ public class SongDatabase {
      * @param songPath
      * @return
      */
-    private static String extractId(Path songPath) {
+    static String extractId(Path songPath) {
         String filename = songPath.getFileName().toString();
         return filename.substring(0, filename.length() - SONG_EXTENSION.length());
     }
 
-    private Path getSongPath(String id) {
-        return songDir.resolve(id + SONG_EXTENSION);
-    }
-
     private static String encodeId(String id) {
         try {
             id = id.replace("'", " ").replace("\"", " ").trim();
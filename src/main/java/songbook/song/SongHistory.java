@@ -0,0 +1,355 @@
+package songbook.song;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Revisions of songs, stored in one <code>id.history</code> file per song.
+ * <p>
+ * Each write appends a revision record: a keyframe with the whole contents or a delta against the previous
+ * revision, both deflated. A delta keeps the prefix and the suffix shared with the previous revision and
+ * replaces what's between, a few bytes for an usual edit. A keyframe is written every {@link #KEYFRAME_INTERVAL}
+ * revisions (or when a delta isn't smaller) so a revision is rebuilt from a bounded number of records.
+ * <p>
+ * Each record holds the offset of its keyframe and ends with its length: an append reads the last record from the
+ * end of the file, then only the records since its keyframe to rebuild the previous revision. Appends to different
+ * songs run concurrently.
+ * <p>
+ * Like in {@link PackedSongStore}, records are checked with a CRC, the first incomplete or corrupted one (from an
+ * interrupted write) and everything after are ignored and removed by the next append.
+ */
+public class SongHistory {
+
+    public static final String HISTORY_EXTENSION = ".history";
+
+    /** Maximum number of records read to rebuild a revision. */
+    static final int KEYFRAME_INTERVAL = 16;
+
+    private static final int RECORD_MAGIC = 0x53424832;
+
+    private static final byte KEYFRAME = 0;
+
+    private static final byte DELTA = 1;
+
+    /** magic, type, time, contents length, payload length and keyframe offset. */
+    private static final int HEADER_LENGTH = 4 + 1 + 8 + 4 + 4 + 8;
+
+    /** record length and CRC. */
+    private static final int TRAILER_LENGTH = 4 + 4;
+
+    /** Number of locks shared by songs for appends. */
+    private static final int LOCK_COUNT = 64;
+
+    /** A revision of a song. */
+    public static class Revision {
+        /** Revision number, from 1. */
+        public final int number;
+        /** Time of revision in milliseconds. */
+        public final long time;
+        /** Length of song contents. */
+        public final int length;
+        /** Bytes used to store revision. */
+        public final int storedLength;
+        public final boolean keyframe;
+
+        private final long payloadOffset;
+
+        private Revision(int number, long time, int length, int storedLength, boolean keyframe, long payloadOffset) {
+            this.number = number;
+            this.time = time;
+            this.length = length;
+            this.storedLength = storedLength;
+            this.keyframe = keyframe;
+            this.payloadOffset = payloadOffset;
+        }
+    }
+
+    private final Logger logger = Logger.getLogger("Songbook");
+
+    private final Path folder;
+
+    /** Appends to a song take the lock given by its id hash. */
+    private final Object[] locks = new Object[LOCK_COUNT];
+
+    public SongHistory(Path folder) throws IOException {
+        this.folder = folder;
+        Files.createDirectories(folder);
+        for (int i = 0; i < locks.length; i++) {
+            locks[i] = new Object();
+        }
+    }
+
+    public Path getFolder() {
+        return folder;
+    }
+
+    public boolean hasRevisions(String id) {
+        return Files.exists(getHistoryPath(id));
+    }
+
+    /** Revisions of song from the oldest, empty if it has none. */
+    public List<Revision> getRevisions(String id) throws IOException {
+        Path path = getHistoryPath(id);
+        if (Files.exists(path) == false) return Collections.emptyList();
+        return readRevisions(ByteBuffer.wrap(Files.readAllBytes(path)), 0);
+    }
+
+    /**
+     * Rebuilds contents of a song revision.
+     * @throws NoSuchFileException if the revision doesn't exist.
+     */
+    public byte[] getContents(String id, int number) throws IOException {
+        Path path = getHistoryPath(id);
+        if (Files.exists(path) == false) throw new NoSuchFileException(id);
+        ByteBuffer history = ByteBuffer.wrap(Files.readAllBytes(path));
+        List<Revision> revisions = readRevisions(history, 0);
+        if (number < 1 || number > revisions.size()) throw new NoSuchFileException(id + " revision " + number);
+        return rebuild(history, 0, revisions, number - 1);
+    }
+
+    /**
+     * Appends a revision with contents unless they are the ones of the last revision.
+     * The history isn't synced, a crash may lose the last revisions but never the song.
+     */
+    void record(String id, byte[] contents, long time) throws IOException {
+        Path path = getHistoryPath(id);
+        synchronized (locks[(id.hashCode() & 0x7fffffff) % locks.length]) {
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                long end = channel.size();
+                long keyframeOffset = readKeyframeOffset(channel, end);
+                if (keyframeOffset < 0) {
+                    // last record is invalid, valid ones are found from the beginning
+                    end = validLength(readRevisions(readBytes(channel, 0, end), 0));
+                    logger.warning("History of '" + id + "' has an invalid record at " + end + ", removes " + (channel.size() - end) + " bytes.");
+                    channel.truncate(end);
+                    keyframeOffset = readKeyframeOffset(channel, end);
+                    if (keyframeOffset < 0) throw new IOException("Invalid history for '" + id + "'");
+                }
+
+                byte type = KEYFRAME;
+                byte[] payload = deflate(contents, 0, contents.length, null);
+                if (end > 0) {
+                    // revisions since the last keyframe
+                    ByteBuffer history = readBytes(channel, keyframeOffset, end - keyframeOffset);
+                    List<Revision> revisions = readRevisions(history, keyframeOffset);
+                    if (validLength(revisions) != end) throw new IOException("Invalid history for '" + id + "'");
+
+                    byte[] previous = rebuild(history, keyframeOffset, revisions, revisions.size() - 1);
+                    if (Arrays.equals(previous, contents)) return;
+
+                    if (revisions.size() < KEYFRAME_INTERVAL) {
+                        byte[] delta = delta(previous, contents);
+                        if (delta.length < payload.length) {
+                            type = DELTA;
+                            payload = delta;
+                        }
+                    }
+                }
+
+                int recordLength = HEADER_LENGTH + payload.length + TRAILER_LENGTH;
+                ByteBuffer record = ByteBuffer.allocate(recordLength);
+                record.putInt(RECORD_MAGIC).put(type).putLong(time).putInt(contents.length).putInt(payload.length);
+                record.putLong(type == KEYFRAME ? end : keyframeOffset);
+                record.put(payload);
+                record.putInt(recordLength);
+                CRC32 crc = new CRC32();
+                crc.update(record.array(), 0, record.position());
+                record.putInt((int) crc.getValue());
+                record.flip();
+                while (record.hasRemaining()) {
+                    end += channel.write(record, end);
+                }
+            }
+        }
+    }
+
+    /** Bytes used by all histories. */
+    public long getStoredBytes() throws IOException {
+        if (Files.isDirectory(folder) == false) return 0;
+        long total = 0;
+        try (Stream<Path> paths = Files.list(folder)) {
+            for (Path path : (Iterable<Path>) paths::iterator) {
+                if (path.toString().endsWith(HISTORY_EXTENSION)) total += Files.size(path);
+            }
+        }
+        return total;
+    }
+
+    private Path getHistoryPath(String id) {
+        return folder.resolve(id + HISTORY_EXTENSION);
+    }
+
+    private static long validLength(List<Revision> revisions) {
+        if (revisions.isEmpty()) return 0;
+        Revision last = revisions.get(revisions.size() - 1);
+        return last.payloadOffset + last.storedLength - HEADER_LENGTH;
+    }
+
+    /**
+     * Reads the last record from the end of the file.
+     * @return the offset of its keyframe, 0 if the file is empty, -1 if the last record is invalid.
+     */
+    private static long readKeyframeOffset(FileChannel channel, long end) throws IOException {
+        if (end == 0) return 0;
+        if (end < HEADER_LENGTH + TRAILER_LENGTH) return -1;
+        int recordLength = readBytes(channel, end - TRAILER_LENGTH, 4).getInt(0);
+        if (recordLength < HEADER_LENGTH + TRAILER_LENGTH || recordLength > end) return -1;
+
+        long offset = end - recordLength;
+        ByteBuffer record = readBytes(channel, offset, recordLength);
+        if (isValidRecord(record, 0, recordLength) == false) return -1;
+        long keyframeOffset = record.getLong(21);
+        if (record.get(4) == KEYFRAME) return keyframeOffset == offset ? offset : -1;
+        return keyframeOffset >= 0 && keyframeOffset < offset ? keyframeOffset : -1;
+    }
+
+    private static ByteBuffer readBytes(FileChannel channel, long position, long length) throws IOException {
+        ByteBuffer bytes = ByteBuffer.allocate((int) length);
+        while (bytes.hasRemaining()) {
+            if (channel.read(bytes, position + bytes.position()) < 0) throw new IOException("Unexpected end of history");
+        }
+        return bytes;
+    }
+
+    /** Checks record header, length and CRC at offset. */
+    private static boolean isValidRecord(ByteBuffer history, int offset, long recordLength) {
+        if (history.getInt(offset) != RECORD_MAGIC) return false;
+        byte type = history.get(offset + 4);
+        int length = history.getInt(offset + 13);
+        int payloadLength = history.getInt(offset + 17);
+        if ((type != KEYFRAME && type != DELTA) || length < 0 || payloadLength < 0) return false;
+        if (recordLength != (long) HEADER_LENGTH + payloadLength + TRAILER_LENGTH) return false;
+        if (history.getInt(offset + (int) recordLength - TRAILER_LENGTH) != recordLength) return false;
+
+        CRC32 crc = new CRC32();
+        crc.update(history.array(), offset, (int) recordLength - 4);
+        return (int) crc.getValue() == history.getInt(offset + (int) recordLength - 4);
+    }
+
+    /**
+     * Reads revisions until the first invalid record.
+     * @param base offset of history bytes in file, the first record must be a keyframe.
+     */
+    private static List<Revision> readRevisions(ByteBuffer history, long base) {
+        List<Revision> revisions = new ArrayList<>();
+        int offset = 0;
+        while (offset + HEADER_LENGTH <= history.limit()) {
+            byte type = history.get(offset + 4);
+            long time = history.getLong(offset + 5);
+            int length = history.getInt(offset + 13);
+            long recordLength = (long) HEADER_LENGTH + history.getInt(offset + 17) + TRAILER_LENGTH;
+            if (offset + recordLength > history.limit() || isValidRecord(history, offset, recordLength) == false) break;
+            // the first revision must be a keyframe
+            if (revisions.isEmpty() && type != KEYFRAME) break;
+
+            revisions.add(new Revision(revisions.size() + 1, time, length, (int) recordLength, type == KEYFRAME, base + offset + HEADER_LENGTH));
+            offset += recordLength;
+        }
+        return revisions;
+    }
+
+    /** Rebuilds revision at index from the keyframe before it. */
+    private static byte[] rebuild(ByteBuffer history, long base, List<Revision> revisions, int index) throws IOException {
+        int keyframe = index;
+        while (revisions.get(keyframe).keyframe == false) keyframe -= 1;
+
+        byte[] contents = null;
+        for (int i = keyframe; i <= index; i++) {
+            Revision revision = revisions.get(i);
+            int payloadOffset = (int) (revision.payloadOffset - base);
+            int payloadLength = revision.storedLength - HEADER_LENGTH - TRAILER_LENGTH;
+            if (revision.keyframe) {
+                contents = inflate(history.array(), payloadOffset, payloadLength, revision.length);
+            } else {
+                contents = applyDelta(contents, history.array(), payloadOffset, payloadLength, revision.length);
+            }
+        }
+        return contents;
+    }
+
+    /** Delta is shared prefix length, shared suffix length and deflated bytes between them. */
+    private static byte[] delta(byte[] previous, byte[] contents) {
+        int max = Math.min(previous.length, contents.length);
+        int prefix = 0;
+        while (prefix < max && previous[prefix] == contents[prefix]) prefix += 1;
+        int suffix = 0;
+        while (suffix < max - prefix && previous[previous.length - 1 - suffix] == contents[contents.length - 1 - suffix]) suffix += 1;
+
+        ByteBuffer header = ByteBuffer.allocate(8).putInt(prefix).putInt(suffix);
+        return deflate(contents, prefix, contents.length - prefix - suffix, header.array());
+    }
+
+    private static byte[] applyDelta(byte[] previous, byte[] payload, int offset, int length, int contentsLength) throws IOException {
+        ByteBuffer header = ByteBuffer.wrap(payload, offset, 8);
+        int prefix = header.getInt();
+        int suffix = header.getInt();
+        int middle = contentsLength - prefix - suffix;
+        if (prefix < 0 || suffix < 0 || middle < 0 || prefix + suffix > previous.length) {
+            throw new IOException("Invalid revision delta");
+        }
+        byte[] replaced = inflate(payload, offset + 8, length - 8, middle);
+
+        byte[] contents = new byte[contentsLength];
+        System.arraycopy(previous, 0, contents, 0, prefix);
+        System.arraycopy(replaced, 0, contents, prefix, middle);
+        System.arraycopy(previous, previous.length - suffix, contents, prefix + middle, suffix);
+        return contents;
+    }
+
+    /** Deflates bytes, after header if not null. */
+    private static byte[] deflate(byte[] bytes, int offset, int length, byte[] header) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(length / 2 + 16);
+        if (header != null) out.write(header, 0, header.length);
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION, true);
+        try {
+            deflater.setInput(bytes, offset, length);
+            deflater.finish();
+            byte[] buffer = new byte[1024];
+            while (deflater.finished() == false) {
+                int count = deflater.deflate(buffer);
+                out.write(buffer, 0, count);
+            }
+        } finally {
+            deflater.end();
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] inflate(byte[] bytes, int offset, int length, int inflatedLength) throws IOException {
+        // nowrap inflater needs an extra byte at the end of input
+        byte[] input = Arrays.copyOfRange(bytes, offset, offset + length + 1);
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(input);
+            byte[] inflated = new byte[inflatedLength];
+            int count = 0;
+            while (count < inflatedLength) {
+                int read = inflater.inflate(inflated, count, inflatedLength - count);
+                if (read == 0 && (inflater.finished() || inflater.needsInput())) break;
+                count += read;
+            }
+            if (count != inflatedLength) throw new IOException("Invalid revision contents");
+            return inflated;
+        } catch (DataFormatException e) {
+            throw new IOException("Invalid revision contents", e);
+        } finally {
+            inflater.end();
+        }
+    }
+}
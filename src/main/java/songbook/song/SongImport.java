@@ -0,0 +1,119 @@
+package songbook.song;
+
+/**
+ * Progress of a song library import done by {@link SongArchive#importSongs}.
+ * <p>
+ * Songs are read from the archive one after the other while the read ones are written, parsed and indexed
+ * in parallel, then the index is committed once.
+ */
+public class SongImport {
+
+    public enum State {
+        /** Songs are being read, written and indexed. */
+        IMPORTING,
+        /** All songs are indexed, the index is being committed. */
+        COMMITTING,
+        DONE,
+        FAILED
+    }
+
+    private final long start = System.currentTimeMillis();
+
+    private volatile State state = State.IMPORTING;
+
+    private volatile int total = 0;
+
+    private volatile int read = 0;
+
+    private volatile int imported = 0;
+
+    private volatile int errors = 0;
+
+    private volatile long end = -1;
+
+    private volatile String error = null;
+
+    public State getState() {
+        return state;
+    }
+
+    /** Number of songs in archive given by its manifest, 0 until it is read at the end of the archive. */
+    public int getTotal() {
+        return total;
+    }
+
+    /** Number of songs read from archive. */
+    public int getRead() {
+        return read;
+    }
+
+    /** Number of songs written and indexed. */
+    public int getImported() {
+        return imported;
+    }
+
+    /** Number of songs which couldn't be read, written or indexed. */
+    public int getErrors() {
+        return errors;
+    }
+
+    /** Elapsed time in milliseconds, until now if import is running. */
+    public long getTime() {
+        return (end < 0 ? System.currentTimeMillis() : end) - start;
+    }
+
+    /** Failure message if state is {@link State#FAILED}. */
+    public String getError() {
+        return error;
+    }
+
+    public boolean isRunning() {
+        return state == State.IMPORTING || state == State.COMMITTING;
+    }
+
+    void setTotal(int total) {
+        this.total = total;
+    }
+
+    synchronized void incrementRead() {
+        read += 1;
+    }
+
+    synchronized void incrementImported() {
+        imported += 1;
+    }
+
+    synchronized void incrementErrors() {
+        errors += 1;
+    }
+
+    void committing() {
+        state = State.COMMITTING;
+    }
+
+    void done() {
+        end = System.currentTimeMillis();
+        state = State.DONE;
+    }
+
+    void failed(Throwable e) {
+        end = System.currentTimeMillis();
+        error = e.getMessage() == null ? e.getClass().getSimpleName() : e.getMessage();
+        state = State.FAILED;
+    }
+
+    @Override
+    public String toString() {
+        String songs = imported + " / " + (total > 0 ? total : read) + " songs, " + errors + " errors";
+        switch (state) {
+            case IMPORTING:
+                return "importing " + songs + " (" + getTime() / 1000 + " s)";
+            case COMMITTING:
+                return "committing " + songs + " (" + getTime() / 1000 + " s)";
+            case DONE:
+                return "done, " + songs + " in " + getTime() + " ms";
+            default:
+                return "failed after " + getTime() + " ms (" + songs + "): " + error;
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package songbook.song;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.util.Optional;
+import java.util.stream.Stream;
+
+/**
+ * Storage of songs contents by id used by {@link SongDatabase}. Reading a song that doesn't exist throws
+ * {@link java.nio.file.NoSuchFileException}.
+ * <p>
+ * Features of a kind of store only are given by its class, like {@link PackedSongStore#copyTo}.
+ */
+interface SongStore extends Closeable {
+
+    /** Folder containing the files of the store. */
+    Path getFolder();
+
+    /** True if each song is a file given by {@link #getFile(String)}. */
+    boolean hasSongFiles();
+
+    /** Ids of stored songs, the stream must be closed. */
+    Stream<String> listIds() throws IOException;
+
+    boolean exists(String id);
+
+    /** Last modification time of song in milliseconds. */
+    long getLastModified(String id) throws IOException;
+
+    /** Size of stored song in bytes. */
+    long getSize(String id) throws IOException;
+
+    ReadableByteChannel read(String id) throws IOException;
+
+    /** Song bytes as stored. */
+    ByteBuffer readBytes(String id) throws IOException;
+
+    /** File containing the song, even if it doesn't exist, empty if songs aren't stored in their own files. */
+    Optional<Path> getFile(String id);
+
+    /** Opens channel to replace song contents, they are stored when the channel is closed. */
+    WritableByteChannel write(String id) throws IOException;
+
+    void delete(String id) throws IOException;
+}
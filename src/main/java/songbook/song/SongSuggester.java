@@ -0,0 +1,199 @@
+package songbook.song;
+
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.analysis.util.CharArraySet;
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.SortedDocValues;
+import org.apache.lucene.index.SortedSetDocValues;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.ReferenceManager;
+import org.apache.lucene.search.SearcherManager;
+import org.apache.lucene.search.suggest.InputIterator;
+import org.apache.lucene.search.suggest.analyzing.AnalyzingSuggester;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.Version;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+
+/**
+ * Completes titles and artists from an in-memory FST suggester.
+ * <p>
+ * The suggester is built from the title and artist doc values of the index. An FST can't be modified,
+ * so after each searcher refresh that saw changes, a new suggester is built in background (at most once
+ * per <code>delay</code> milliseconds) and replaces the current one.
+ */
+public class SongSuggester implements ReferenceManager.RefreshListener {
+
+    private final Logger logger = Logger.getLogger("Songbook");
+
+    private final SearcherManager searcherManager;
+
+    private final long delay;
+
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "Songbook Suggester Builder");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private volatile AnalyzingSuggester suggester = null;
+
+    /** True when a build is planned, guarded by this. */
+    private boolean scheduled = false;
+
+    SongSuggester(SearcherManager searcherManager, long delay) {
+        this.searcherManager = searcherManager;
+        this.delay = delay;
+    }
+
+    /**
+     * Finds titles and artists starting like the given text.
+     * @return suggestions ordered by number of songs.
+     */
+    public List<String> suggest(String text, int count) {
+        AnalyzingSuggester current = suggester;
+        if (current == null || current.getCount() == 0 || text == null || text.trim().isEmpty()) {
+            return Collections.emptyList();
+        }
+        try {
+            return current.lookup(text, false, count).stream()
+                .map(result -> result.key.toString())
+                .collect(Collectors.toList());
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Can't suggest for '" + text + "'", e);
+            return Collections.emptyList();
+        }
+    }
+
+    @Override
+    public void beforeRefresh() {
+    }
+
+    @Override
+    public void afterRefresh(boolean didRefresh) {
+        if (didRefresh) {
+            synchronized (this) {
+                if (scheduled) return;
+                scheduled = true;
+            }
+            executor.schedule(this::buildQuietly, delay, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /** Builds suggester from current searcher. */
+    void build() throws IOException {
+        long start = System.currentTimeMillis();
+        synchronized (this) {
+            scheduled = false;
+        }
+
+        Map<String, Long> weights = new HashMap<>();
+        IndexSearcher searcher = searcherManager.acquire();
+        try {
+            for (AtomicReaderContext context : searcher.getIndexReader().leaves()) {
+                collectWeights(context.reader(), weights);
+            }
+        } finally {
+            searcherManager.release(searcher);
+        }
+
+        AnalyzingSuggester newSuggester = new AnalyzingSuggester(new StandardAnalyzer(Version.LUCENE_48, CharArraySet.EMPTY_SET));
+        newSuggester.build(new WeightsIterator(weights));
+        suggester = newSuggester;
+
+        long time = System.currentTimeMillis() - start;
+        logger.fine("Built suggester with " + weights.size() + " entries in " + time + " ms.");
+    }
+
+    void close() {
+        executor.shutdownNow();
+    }
+
+    private void buildQuietly() {
+        try {
+            build();
+        } catch (IOException | RuntimeException e) {
+            logger.log(Level.SEVERE, "Can't build suggester", e);
+        }
+    }
+
+    /** Counts songs for each title and artist. */
+    private void collectWeights(AtomicReader reader, Map<String, Long> weights) throws IOException {
+        Bits liveDocs = reader.getLiveDocs();
+        SortedDocValues titles = reader.getSortedDocValues("title");
+        SortedSetDocValues artists = reader.getSortedSetDocValues("artist");
+        BytesRef bytes = new BytesRef();
+        for (int doc = 0; doc < reader.maxDoc(); doc++) {
+            if (liveDocs != null && liveDocs.get(doc) == false) continue;
+            if (titles != null) {
+                titles.get(doc, bytes);
+                if (bytes.length > 0) weights.merge(bytes.utf8ToString(), 1L, Long::sum);
+            }
+            if (artists != null) {
+                artists.setDocument(doc);
+                for (long ord = artists.nextOrd(); ord != SortedSetDocValues.NO_MORE_ORDS; ord = artists.nextOrd()) {
+                    artists.lookupOrd(ord, bytes);
+                    weights.merge(bytes.utf8ToString(), 1L, Long::sum);
+                }
+            }
+        }
+    }
+
+    private static class WeightsIterator implements InputIterator {
+
+        private final Iterator<Map.Entry<String, Long>> entries;
+
+        private long weight;
+
+        WeightsIterator(Map<String, Long> weights) {
+            this.entries = weights.entrySet().iterator();
+        }
+
+        @Override
+        public BytesRef next() {
+            if (entries.hasNext() == false) return null;
+            Map.Entry<String, Long> entry = entries.next();
+            weight = entry.getValue();
+            return new BytesRef(entry.getKey());
+        }
+
+        @Override
+        public long weight() {
+            return weight;
+        }
+
+        @Override
+        public BytesRef payload() {
+            return null;
+        }
+
+        @Override
+        public boolean hasPayloads() {
+            return false;
+        }
+
+        @Override
+        public Set<BytesRef> contexts() {
+            return null;
+        }
+
+        @Override
+        public boolean hasContexts() {
+            return false;
+        }
+
+        @Override
+        public Comparator<BytesRef> getComparator() {
+            return null;
+        }
+    }
+}
@@ -6,6 +6,13 @@ import org.apache.lucene.document.StringField;
 import org.apache.lucene.document.TextField;
 
 import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 /**
@@ -19,6 +26,9 @@ public class SongUtils {
 
 	public static Pattern REPEAT_REGEXP = Pattern.compile("\\(x[0-9]+\\)");
 
+	/** Notes by semitones from C, '.' are altered notes */
+	private static String NOTES = "C.D.EF.G.A.B";
+
 	public static String getTitle(String songData) {
 		int indexOfFirstLine = songData.replace("\r\n", "\n").replace("\r", "\n").indexOf("\n");
 		if (indexOfFirstLine != -1) {
@@ -47,10 +57,105 @@ public class SongUtils {
 		return document;
 	}
 
+	/** Computes an hexadecimal MD5 hash of song contents to detect changes. */
+	public static String contentHash(String songData) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("MD5");
+			byte[] hash = digest.digest(songData.getBytes(StandardCharsets.UTF_8));
+			return String.format("%032x", new BigInteger(1, hash));
+		} catch (NoSuchAlgorithmException e) {
+			return Integer.toHexString(songData.hashCode());
+		}
+	}
+
+	/** Is this line only made of chords (and repeat markers). */
+	public static boolean isChordLine(String line) {
+		String[] tokens = line.replace("|", " ").split(" ");
+		boolean isLineChords = true;
+		for (int j = 0; isLineChords && j < tokens.length; j++) {
+			if (!tokens[j].isEmpty()) {
+				isLineChords = isLineChords && (CHORD_REGEXP.matcher(tokens[j]).matches() || REPEAT_REGEXP.matcher(tokens[j]).matches());
+			}
+		}
+		return isLineChords;
+	}
+
+	/** Extracts chords of song in order of appearance. */
+	public static List<String> getChords(String songData) {
+		List<String> chords = new ArrayList<>();
+		String[] songLines = getSongLines(songData);
+		for (int i = 1; i < songLines.length; i++) {
+			String line = songLines[i].trim();
+			if (line.isEmpty() || line.contains(":") || !isChordLine(line)) continue;
+			for (String token : line.replace("|", " ").split(" ")) {
+				if (!token.isEmpty() && CHORD_REGEXP.matcher(token).matches()) {
+					chords.add(token);
+				}
+			}
+		}
+		return chords;
+	}
+
+	/**
+	 * Converts a chord sequence into steps that don't depend on the key: each step is the interval in semitones
+	 * from the previous chord root followed by the chord quality (empty for major, 'm' minor, 'd' diminished,
+	 * 'a' augmented), e.g. "C Am F G" gives "9m 8 2". Extensions are ignored and repeated chords are merged.
+	 */
+	public static List<String> getChordSteps(List<String> chords) {
+		List<String> steps = new ArrayList<>();
+		int previousRoot = -1;
+		String previousQuality = null;
+		for (String chord : chords) {
+			Matcher matcher = CHORD_REGEXP.matcher(chord);
+			if (!matcher.matches()) continue;
+			int root = NOTES.indexOf(matcher.group(1).charAt(0));
+			if ("#".equals(matcher.group(2))) root += 1;
+			if ("b".equals(matcher.group(2))) root += 11;
+			root = root % 12;
+			String quality = getChordQuality(matcher.group(3), matcher.group(8));
+			if (previousRoot >= 0 && (root != previousRoot || !quality.equals(previousQuality))) {
+				steps.add(((root - previousRoot + 12) % 12) + quality);
+			}
+			previousRoot = root;
+			previousQuality = quality;
+		}
+		return steps;
+	}
+
+	private static String getChordQuality(String third, String fifth) {
+		if (third != null) {
+			switch (third) {
+				case "m": case "min":
+					return "m";
+				case "dim": case "°": case "ø": case "Ø":
+					return "d";
+			}
+		}
+		return "+".equals(fifth) || "aug".equals(fifth) ? "a" : "";
+	}
+
 	public static String[] getSongLines(String songData) {
 		return songData.replace("\r\n", "\n").replace("\r", "\n").split("\n");
 	}
 
+	/** Appends value as a JSON string. */
+	public static void appendJsonString(StringBuilder out, String value) {
+		out.append('"');
+		for (char c : value.toCharArray()) {
+			switch (c) {
+				case '"': out.append("\\\""); break;
+				case '\\': out.append("\\\\"); break;
+				default:
+					if (c < 0x20) {
+						out.append(String.format("\\u%04x", (int) c));
+					} else {
+						out.append(c);
+					}
+			}
+		}
+		out.append('"');
+	}
+
 	public static <A extends Appendable> A writeHtml(A w, String songData) {
 		try {
 			String[] songLines = SongUtils.getSongLines(songData);
@@ -141,14 +246,7 @@ public class SongUtils {
 					w.append(line);
 					w.append("</div>");
 				} else {
-					String[] tokens = line.replace("|", " ").split(" ");
-					boolean isLineChords = true;
-					for (int j = 0; isLineChords && j < tokens.length; j++) {
-						if (!tokens[j].isEmpty()) {
-							isLineChords = isLineChords && (CHORD_REGEXP.matcher(tokens[j]).matches() || REPEAT_REGEXP.matcher(tokens[j]).matches());
-						}
-					}
-					if (isLineChords) {
+					if (isChordLine(line)) {
 						if (!verse) {
                             if (songHeader) {
                                 songHeader = false;
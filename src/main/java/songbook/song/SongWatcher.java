@@ -0,0 +1,140 @@
+package songbook.song;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+/**
+ * Watches the songs directory to keep the index up to date when song files are changed outside of the server.
+ * <p>
+ * Events are coalesced: changed ids are collected until no event is received during <code>delay</code>
+ * milliseconds (or at most ten times this delay) then they are given to {@link IndexDatabase#updateSongs}.
+ * When the system lost events (overflow), the whole directory is synchronized.
+ * <p>
+ * When started, songs are checked once against the catalog to find the ones edited in place while the server was
+ * stopped, which the catalog can't tell.
+ */
+public class SongWatcher implements Closeable {
+
+    public static final long DEFAULT_DELAY = 500;
+
+    private final Logger logger = Logger.getLogger("Songbook");
+
+    private final SongDatabase songDb;
+
+    private final IndexDatabase indexDb;
+
+    private final long delay;
+
+    private final WatchService watchService;
+
+    private final Thread thread;
+
+    public SongWatcher(SongDatabase songDb, IndexDatabase indexDb, long delay) throws IOException {
+        this.songDb = songDb;
+        this.indexDb = indexDb;
+        this.delay = Math.max(1, delay);
+
+        Path songDir = songDb.getSongDir();
+        watchService = FileSystems.getDefault().newWatchService();
+        songDir.register(watchService, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE);
+
+        thread = new Thread(this::run, "Songbook Song Watcher");
+        thread.setDaemon(true);
+    }
+
+    public void start() {
+        thread.start();
+    }
+
+    /** Stops watching, waits for an index update in progress to end. */
+    @Override
+    public void close() throws IOException {
+        watchService.close();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while stopping song watcher");
+        }
+    }
+
+    private void run() {
+        checkSongs();
+        try {
+            while (true) {
+                // waits for first event
+                WatchKey key = watchService.take();
+                long first = System.currentTimeMillis();
+
+                Set<String> changed = new HashSet<>();
+                boolean overflow = false;
+                while (key != null) {
+                    overflow |= collect(key, changed);
+                    key.reset();
+
+                    // waits for next event in burst
+                    boolean tooLong = System.currentTimeMillis() - first > delay * 10;
+                    key = tooLong ? null : watchService.poll(delay, TimeUnit.MILLISECONDS);
+                }
+
+                update(changed, overflow);
+            }
+        } catch (ClosedWatchServiceException | InterruptedException e) {
+            // watcher is closed
+        }
+    }
+
+    /** Collects ids of changed songs, returns true if events were lost. */
+    private boolean collect(WatchKey key, Set<String> changed) {
+        boolean overflow = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == OVERFLOW) {
+                overflow = true;
+            } else {
+                Path path = (Path) event.context();
+                if (path.toString().endsWith(SongDatabase.SONG_EXTENSION)) {
+                    changed.add(SongDatabase.extractId(path));
+                }
+            }
+        }
+        return overflow;
+    }
+
+    /** Updates catalog and index for songs changed while they weren't watched. */
+    private void checkSongs() {
+        try {
+            if (songDb.checkCatalog() > 0) indexDb.synchronizeSongs();
+        } catch (IOException | RuntimeException e) {
+            logger.log(Level.SEVERE, "Can't check songs", e);
+        }
+    }
+
+    private void update(Set<String> changed, boolean overflow) {
+        try {
+            if (overflow) {
+                logger.warning("Song watcher lost events, synchronizes all songs.");
+                songDb.reload();
+                indexDb.synchronizeSongs();
+            } else if (changed.isEmpty() == false) {
+                changed.forEach(songDb::invalidate);
+                indexDb.updateSongs(changed);
+            }
+        } catch (IOException | RuntimeException e) {
+            logger.log(Level.SEVERE, "Can't update index for changed songs", e);
+        }
+    }
+}
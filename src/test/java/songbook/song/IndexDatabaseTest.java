@@ -0,0 +1,105 @@
+package songbook.song;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+public class IndexDatabaseTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private SongDatabase songDb;
+
+    private IndexDatabase indexDb;
+
+    @Before
+    public void open() throws IOException {
+        Path songDir = folder.newFolder("songs").toPath();
+        writeSong(songDir, "toned", "Toned\n\nartist: A\ntone: G\n\nG C D\n");
+        writeSong(songDir, "keyed", "Keyed\n\nartist: B\nkey: D\n\nD G A\n");
+        writeSong(songDir, "plain", "Plain\n\nartist: C\n\nC F G\n");
+        // same lyrics give the same score
+        for (String id : Arrays.asList("same3", "same1", "same4", "same2")) {
+            writeSong(songDir, id, "Same\n\nartist: D\n\nC G Am F\nEverlasting words\n");
+        }
+        songDb = new SongDatabase(songDir);
+        indexDb = new IndexDatabase(folder.newFolder("index").toPath(), songDb);
+    }
+
+    @After
+    public void close() throws IOException {
+        indexDb.close();
+        songDb.close();
+    }
+
+    private static void writeSong(Path songDir, String id, String contents) throws IOException {
+        Files.write(songDir.resolve(id + SongDatabase.SONG_EXTENSION), contents.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void toneIsCountedAsKey() throws Exception {
+        SearchPage page = indexDb.search("", null, Collections.emptyMap(), null, 10);
+        Map<String, Integer> keys = page.facets.get("key");
+        assertEquals(Integer.valueOf(1), keys.get("G"));
+        assertEquals(Integer.valueOf(1), keys.get("D"));
+        assertEquals(2, keys.size());
+    }
+
+    @Test
+    public void toneIsFilteredAsKey() throws Exception {
+        SearchPage page = indexDb.search("", null, Collections.singletonMap("key", "G"), null, 10);
+        assertEquals(1, page.totalHits);
+        assertEquals("toned", page.hits.get(0).id);
+        assertNull(page.nextCursor);
+    }
+
+    /** Ids of all pages of a search, one song per page. */
+    private List<String> searchAllPages(String query) throws Exception {
+        List<String> ids = new ArrayList<>();
+        String cursor = null;
+        do {
+            SearchPage page = indexDb.search(query, null, Collections.emptyMap(), cursor, 1);
+            for (SearchPage.Hit hit : page.hits) ids.add(hit.id);
+            cursor = page.nextCursor;
+        } while (cursor != null);
+        return ids;
+    }
+
+    @Test
+    public void equalScoresArePagedById() throws Exception {
+        assertEquals(Arrays.asList("same1", "same2", "same3", "same4"), searchAllPages("everlasting"));
+    }
+
+    @Test
+    public void listingIsPagedByTitle() throws Exception {
+        assertEquals(Arrays.asList("keyed", "plain", "same1", "same2", "same3", "same4", "toned"), searchAllPages(""));
+    }
+
+    @Test
+    public void listingCursorIsInvalidForQuery() throws Exception {
+        String cursor = indexDb.search("", null, Collections.emptyMap(), null, 1).nextCursor;
+        try {
+            indexDb.search("everlasting", null, Collections.emptyMap(), cursor, 1);
+            fail("Listing cursor used for query");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,188 @@
+package songbook.song;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PackedSongStoreTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static byte[] bytes(String contents) {
+        return contents.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String contents(PackedSongStore store, String id) throws IOException {
+        ByteBuffer buffer = store.readBytes(id);
+        return new String(buffer.array(), buffer.position(), buffer.remaining(), StandardCharsets.UTF_8);
+    }
+
+    /** Copies store files as a crash would leave them, without the index saved at close. */
+    private Path crashCopy(Path store) throws IOException {
+        Path copy = folder.newFolder().toPath();
+        try (Stream<Path> files = Files.list(store)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                Files.copy(file, copy.resolve(file.getFileName()));
+            }
+        }
+        return copy;
+    }
+
+    private static void truncate(Path file, long removed) throws IOException {
+        try (RandomAccessFile access = new RandomAccessFile(file.toFile(), "rw")) {
+            access.setLength(access.length() - removed);
+        }
+    }
+
+    @Test
+    public void roundTrip() throws Exception {
+        Path path = folder.newFolder("pack").toPath();
+        try (PackedSongStore store = new PackedSongStore(path)) {
+            store.put("a", bytes("Song a"), 1000, true);
+            store.put("b", bytes("Song b"), 2000, true);
+            store.put("a", bytes("Song a, again"), 3000, true);
+            try (WritableByteChannel channel = store.write("c")) {
+                channel.write(ByteBuffer.wrap(bytes("Song c")));
+            }
+            store.delete("b");
+        }
+
+        try (PackedSongStore store = new PackedSongStore(path)) {
+            assertEquals(2, store.size());
+            assertEquals("Song a, again", contents(store, "a"));
+            assertEquals(3000, store.getLastModified("a"));
+            assertEquals(13, store.getSize("a"));
+            assertEquals("Song c", contents(store, "c"));
+            assertFalse(store.exists("b"));
+            assertFalse(store.getFile("a").isPresent());
+
+            ByteArrayOutputStream copy = new ByteArrayOutputStream();
+            assertEquals(Files.size(path.resolve(PackedSongStore.PACK_FILE)), store.copyTo(copy));
+        }
+    }
+
+    @Test
+    public void reopenAfterCrash() throws Exception {
+        Path path = folder.newFolder("pack").toPath();
+        Path crashed;
+        try (PackedSongStore store = new PackedSongStore(path)) {
+            store.put("a", bytes("Song a"), 1000, true);
+        }
+        try (PackedSongStore store = new PackedSongStore(path)) {
+            // records after the saved index are only in pack
+            store.put("b", bytes("Song b"), 2000, true);
+            store.delete("a");
+            crashed = crashCopy(path);
+        }
+
+        try (PackedSongStore store = new PackedSongStore(crashed)) {
+            assertEquals(1, store.size());
+            assertFalse(store.exists("a"));
+            assertEquals("Song b", contents(store, "b"));
+            assertEquals(2000, store.getLastModified("b"));
+        }
+    }
+
+    @Test
+    public void tornRecordIsRemoved() throws Exception {
+        Path path = folder.newFolder("pack").toPath();
+        Path crashed;
+        try (PackedSongStore store = new PackedSongStore(path)) {
+            store.put("a", bytes("Song a"), 1000, true);
+            store.put("b", bytes("Song b"), 2000, true);
+            crashed = crashCopy(path);
+        }
+        // the write of "b" was interrupted
+        Path pack = crashed.resolve(PackedSongStore.PACK_FILE);
+        long length = Files.size(pack);
+        truncate(pack, 3);
+
+        try (PackedSongStore store = new PackedSongStore(crashed)) {
+            assertEquals(1, store.size());
+            assertEquals("Song a", contents(store, "a"));
+            assertFalse(store.exists("b"));
+            assertTrue(Files.size(pack) < length - 3);
+
+            // appends after the last valid record
+            store.put("c", bytes("Song c"), 3000, true);
+        }
+        try (PackedSongStore store = new PackedSongStore(crashed)) {
+            assertEquals(2, store.size());
+            assertEquals("Song c", contents(store, "c"));
+        }
+    }
+
+    @Test
+    public void corruptedRecordIsRemoved() throws Exception {
+        Path path = folder.newFolder("pack").toPath();
+        Path crashed;
+        try (PackedSongStore store = new PackedSongStore(path)) {
+            store.put("a", bytes("Song a"), 1000, true);
+            store.put("b", bytes("Song b"), 2000, true);
+            crashed = crashCopy(path);
+        }
+        // changes last content byte of "b", before the CRC
+        try (RandomAccessFile access = new RandomAccessFile(crashed.resolve(PackedSongStore.PACK_FILE).toFile(), "rw")) {
+            access.seek(access.length() - 5);
+            access.write('x');
+        }
+
+        try (PackedSongStore store = new PackedSongStore(crashed)) {
+            assertEquals(1, store.size());
+            assertFalse(store.exists("b"));
+        }
+    }
+
+    @Test
+    public void invalidIndexIsRebuilt() throws Exception {
+        Path path = folder.newFolder("pack").toPath();
+        try (PackedSongStore store = new PackedSongStore(path)) {
+            store.put("a", bytes("Song a"), 1000, true);
+            store.put("b", bytes("Song b"), 2000, true);
+            store.delete("a");
+        }
+        Path index = path.resolve("songs.idx");
+        assertTrue(Files.exists(index));
+        truncate(index, 1);
+
+        try (PackedSongStore store = new PackedSongStore(path)) {
+            assertEquals(1, store.size());
+            assertFalse(store.exists("a"));
+            assertEquals("Song b", contents(store, "b"));
+        }
+    }
+
+    @Test
+    public void indexBeyondPackIsIgnored() throws Exception {
+        Path path = folder.newFolder("pack").toPath();
+        try (PackedSongStore store = new PackedSongStore(path)) {
+            store.put("a", bytes("Song a"), 1000, true);
+            store.put("b", bytes("Song b"), 2000, true);
+        }
+        // pack lost its last record after the index was saved
+        truncate(path.resolve(PackedSongStore.PACK_FILE), 1);
+
+        try (PackedSongStore store = new PackedSongStore(path)) {
+            assertEquals(1, store.size());
+            assertEquals("Song a", contents(store, "a"));
+            ByteArrayOutputStream copy = new ByteArrayOutputStream();
+            store.copyTo(copy);
+            assertEquals(Files.size(path.resolve(PackedSongStore.PACK_FILE)), copy.size());
+        }
+    }
+}
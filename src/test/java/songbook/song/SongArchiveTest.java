@@ -0,0 +1,125 @@
+package songbook.song;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SongArchiveTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private SongDatabase songDb;
+
+    private SongDatabase importDb;
+
+    private IndexDatabase importIndexDb;
+
+    @Before
+    public void open() throws IOException {
+        Path songDir = folder.newFolder("songs").toPath();
+        for (String id : Arrays.asList("a", "b", "c")) {
+            String contents = "Song " + id + "\n\nartist: Artist " + id + "\n\nC G Am F\n";
+            Files.write(songDir.resolve(id + SongDatabase.SONG_EXTENSION), contents.getBytes(StandardCharsets.UTF_8));
+        }
+        songDb = new SongDatabase(songDir);
+
+        importDb = new SongDatabase(folder.newFolder("imported").toPath());
+        importIndexDb = new IndexDatabase(folder.newFolder("index").toPath(), importDb);
+    }
+
+    @After
+    public void close() throws IOException {
+        importIndexDb.close();
+        importDb.close();
+        songDb.close();
+    }
+
+    private SongImport importArchive(byte[] archive) throws IOException {
+        SongImport progress = new SongImport();
+        SongArchive.importSongs(new ByteArrayInputStream(archive), importDb, importIndexDb, progress, () -> { });
+        return progress;
+    }
+
+    @Test
+    public void roundTrip() throws Exception {
+        ByteArrayOutputStream archive = new ByteArrayOutputStream();
+        assertEquals(3, SongArchive.exportSongs(songDb, archive));
+
+        SongImport progress = importArchive(archive.toByteArray());
+        assertEquals(SongImport.State.DONE, progress.getState());
+        assertEquals(3, progress.getTotal());
+        assertEquals(3, progress.getImported());
+        assertEquals(0, progress.getErrors());
+        for (String id : Arrays.asList("a", "b", "c")) {
+            assertEquals(songDb.getSongContents(id), importDb.getSongContents(id));
+            assertEquals("Song " + id, importDb.getCatalog().get(id).title);
+        }
+        assertEquals(3, importIndexDb.search("", null, Collections.emptyMap(), null, 10).totalHits);
+    }
+
+    @Test
+    public void songDeletedDuringExport() throws Exception {
+        // "c" is deleted once the export started writing
+        ByteArrayOutputStream archive = new ByteArrayOutputStream();
+        FilterOutputStream out = new FilterOutputStream(archive) {
+            private boolean deleted = false;
+
+            @Override
+            public void write(byte[] bytes, int offset, int length) throws IOException {
+                if (deleted == false) {
+                    deleted = true;
+                    assertTrue(songDb.delete("c"));
+                }
+                out.write(bytes, offset, length);
+            }
+        };
+        assertEquals(2, SongArchive.exportSongs(songDb, out));
+
+        SongImport progress = importArchive(archive.toByteArray());
+        assertEquals(SongImport.State.DONE, progress.getState());
+        assertEquals(2, progress.getTotal());
+        assertEquals(2, progress.getImported());
+        assertFalse(importDb.exists("c"));
+    }
+
+    @Test
+    public void archiveWithoutManifest() throws Exception {
+        ByteArrayOutputStream archive = new ByteArrayOutputStream();
+        SongArchive.exportSongs(songDb, archive);
+        byte[] bytes = archive.toByteArray();
+
+        // cut just before the manifest local header (30 bytes before its name), the songs are complete
+        String text = new String(bytes, StandardCharsets.ISO_8859_1);
+        int manifest = text.indexOf(SongArchive.MANIFEST) - 30;
+        SongImport progress = new SongImport();
+        try {
+            SongArchive.importSongs(new ByteArrayInputStream(Arrays.copyOf(bytes, manifest)), importDb, importIndexDb, progress, () -> { });
+            fail("Archive without manifest imported");
+        } catch (EOFException e) {
+            // expected
+        }
+        assertEquals(SongImport.State.FAILED, progress.getState());
+        assertEquals(3, progress.getRead());
+        // songs read before the failure are kept
+        assertEquals(3, progress.getImported());
+    }
+}
@@ -0,0 +1,232 @@
+package songbook.song;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class SongCatalogTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path path;
+
+    @Before
+    public void open() throws IOException {
+        path = folder.newFolder("catalog").toPath().resolve("songs");
+    }
+
+    private static SongCatalog.Entry entry(String id, long modified) {
+        return new SongCatalog.Entry(id, 100, modified, "Song " + id, Arrays.asList("Artist " + id, "Other"));
+    }
+
+    /** Copies catalog files as a crash would leave them, without the catalog written at close. */
+    private Path crashCopy(Path catalog) throws IOException {
+        Path copy = folder.newFolder().toPath().resolve("songs");
+        for (String extension : Arrays.asList(SongCatalog.CATALOG_EXTENSION, SongCatalog.JOURNAL_EXTENSION)) {
+            Path file = catalog.resolveSibling(catalog.getFileName() + extension);
+            if (Files.exists(file)) Files.copy(file, copy.resolveSibling(copy.getFileName() + extension));
+        }
+        return copy;
+    }
+
+    @Test
+    public void roundTrip() throws Exception {
+        SongCatalog catalog = new SongCatalog(path);
+        assertFalse(catalog.isLoaded());
+        catalog.put(entry("a", 1000), true);
+        catalog.put(entry("b", 2000), false);
+        catalog.put(entry("c", 3000), true);
+        catalog.remove("b", true);
+        catalog.close(1234);
+
+        catalog = new SongCatalog(path);
+        try {
+            assertTrue(catalog.isLoaded());
+            assertTrue(catalog.isClosedWith(1234));
+            assertFalse(catalog.isClosedWith(1235));
+            assertEquals(2, catalog.size());
+            assertNull(catalog.get("b"));
+            SongCatalog.Entry a = catalog.get("a");
+            assertEquals(100, a.size);
+            assertEquals(1000, a.modified);
+            assertEquals("Song a", a.title);
+            assertEquals(Arrays.asList("Artist a", "Other"), a.artists);
+        } finally {
+            catalog.close(1234);
+        }
+    }
+
+    @Test
+    public void reopenAfterCrash() throws Exception {
+        SongCatalog catalog = new SongCatalog(path);
+        catalog.put(entry("a", 1000), true);
+        catalog.close(1234);
+
+        Path crashed;
+        catalog = new SongCatalog(path);
+        try {
+            catalog.put(entry("b", 2000), true);
+            catalog.remove("a", true);
+            crashed = crashCopy(path);
+        } finally {
+            catalog.close(1234);
+        }
+
+        catalog = new SongCatalog(crashed);
+        try {
+            // changes are replayed from journal, but the store must be checked
+            assertTrue(catalog.isLoaded());
+            assertFalse(catalog.isClosedWith(1234));
+            assertEquals(Collections.singletonList("b"), Arrays.asList(catalog.listIds().toArray()));
+            assertEquals(2000, catalog.get("b").modified);
+        } finally {
+            catalog.close(1234);
+        }
+
+        // closed again, the catalog is trusted
+        catalog = new SongCatalog(crashed);
+        assertTrue(catalog.isClosedWith(1234));
+        catalog.close(1234);
+    }
+
+    @Test
+    public void crashWithoutChangesIsDetected() throws Exception {
+        new SongCatalog(path).close(1234);
+
+        Path crashed;
+        SongCatalog catalog = new SongCatalog(path);
+        try {
+            // only the opening record is in journal
+            crashed = crashCopy(path);
+        } finally {
+            catalog.close(1234);
+        }
+
+        catalog = new SongCatalog(crashed);
+        assertTrue(catalog.isLoaded());
+        assertFalse(catalog.isClosedWith(1234));
+        catalog.close(1234);
+    }
+
+    @Test
+    public void savedCatalogIsntClosed() throws Exception {
+        SongCatalog catalog = new SongCatalog(path);
+        catalog.put(entry("a", 1000), true);
+        catalog.save();
+        // crash after save leaves an empty journal, but no store time
+        Path crashed = crashCopy(path);
+        catalog.close(1234);
+
+        catalog = new SongCatalog(crashed);
+        assertTrue(catalog.isLoaded());
+        assertTrue(catalog.contains("a"));
+        assertFalse(catalog.isClosedWith(-1));
+        assertFalse(catalog.isClosedWith(1234));
+        catalog.close(1234);
+    }
+
+    @Test
+    public void replayStopsAtBadRecord() throws Exception {
+        SongCatalog catalog = new SongCatalog(path);
+        catalog.close(1234);
+
+        Path crashed;
+        catalog = new SongCatalog(path);
+        try {
+            catalog.put(entry("a", 1000), true);
+            catalog.put(entry("b", 2000), true);
+            catalog.put(entry("c", 3000), true);
+            crashed = crashCopy(path);
+        } finally {
+            catalog.close(1234);
+        }
+
+        // changes a byte of the record of "b", its CRC no longer matches
+        Path journal = crashed.resolveSibling(crashed.getFileName() + SongCatalog.JOURNAL_EXTENSION);
+        long recordLength;
+        try (RandomAccessFile access = new RandomAccessFile(journal.toFile(), "rw")) {
+            recordLength = (access.length() - 13) / 3;
+            long position = 13 + recordLength + 20;
+            access.seek(position);
+            int value = access.read();
+            access.seek(position);
+            access.write(value ^ 0xff);
+        }
+
+        catalog = new SongCatalog(crashed);
+        try {
+            assertEquals(1, catalog.size());
+            assertTrue(catalog.contains("a"));
+            assertFalse(catalog.contains("b"));
+            assertFalse(catalog.contains("c"));
+            // invalid records were removed, new ones are appended after the valid ones
+            catalog.put(entry("d", 4000), true);
+        } finally {
+            catalog.close(1234);
+        }
+
+        catalog = new SongCatalog(crashed);
+        assertEquals(2, catalog.size());
+        assertTrue(catalog.contains("d"));
+        catalog.close(1234);
+    }
+
+    @Test
+    public void truncatedRecordIsRemoved() throws Exception {
+        SongCatalog catalog = new SongCatalog(path);
+        catalog.close(1234);
+
+        Path crashed;
+        catalog = new SongCatalog(path);
+        try {
+            catalog.put(entry("a", 1000), true);
+            catalog.put(entry("b", 2000), true);
+            crashed = crashCopy(path);
+        } finally {
+            catalog.close(1234);
+        }
+        Path journal = crashed.resolveSibling(crashed.getFileName() + SongCatalog.JOURNAL_EXTENSION);
+        try (RandomAccessFile access = new RandomAccessFile(journal.toFile(), "rw")) {
+            access.setLength(access.length() - 2);
+        }
+
+        catalog = new SongCatalog(crashed);
+        assertEquals(1, catalog.size());
+        assertTrue(catalog.contains("a"));
+        assertFalse(catalog.isClosedWith(1234));
+        catalog.close(1234);
+    }
+
+    @Test
+    public void corruptedCatalogIsntLoaded() throws Exception {
+        SongCatalog catalog = new SongCatalog(path);
+        catalog.put(entry("a", 1000), true);
+        catalog.close(1234);
+
+        Path file = path.resolveSibling(path.getFileName() + SongCatalog.CATALOG_EXTENSION);
+        try (RandomAccessFile access = new RandomAccessFile(file.toFile(), "rw")) {
+            access.seek(20);
+            access.write('x');
+        }
+
+        catalog = new SongCatalog(path);
+        assertFalse(catalog.isLoaded());
+        assertFalse(catalog.isClosedWith(1234));
+        assertEquals(0, catalog.size());
+        catalog.close(1234);
+    }
+}
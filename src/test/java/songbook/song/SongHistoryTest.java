@@ -0,0 +1,143 @@
+package songbook.song;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SongHistoryTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path path;
+
+    @Before
+    public void open() throws IOException {
+        path = folder.newFolder("history").toPath();
+    }
+
+    /** Song with a hundred lines, the given one changed by revision. */
+    private static byte[] song(int line, int revision) {
+        StringBuilder song = new StringBuilder("Song\n\nartist: Artist\n\n");
+        for (int i = 0; i < 100; i++) {
+            song.append("Line ").append(i).append(": ").append(i * 7919 % 1000);
+            if (i == line) song.append(" revised ").append(revision);
+            song.append('\n');
+        }
+        return song.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static void truncate(Path file, long removed) throws IOException {
+        try (RandomAccessFile access = new RandomAccessFile(file.toFile(), "rw")) {
+            access.setLength(access.length() - removed);
+        }
+    }
+
+    @Test
+    public void roundTrip() throws Exception {
+        SongHistory history = new SongHistory(path);
+        int count = SongHistory.KEYFRAME_INTERVAL + 4;
+        for (int i = 0; i < count; i++) {
+            history.record("a", song(i, i), 1000 + i);
+        }
+        // same contents as the last revision aren't recorded
+        history.record("a", song(count - 1, count - 1), 5000);
+        assertFalse(history.hasRevisions("b"));
+
+        // a new instance reads the same files
+        history = new SongHistory(path);
+        List<SongHistory.Revision> revisions = history.getRevisions("a");
+        assertEquals(count, revisions.size());
+        for (int i = 0; i < count; i++) {
+            SongHistory.Revision revision = revisions.get(i);
+            assertEquals(i + 1, revision.number);
+            assertEquals(1000 + i, revision.time);
+            assertEquals(i % SongHistory.KEYFRAME_INTERVAL == 0, revision.keyframe);
+            assertArrayEquals(song(i, i), history.getContents("a", i + 1));
+        }
+        assertTrue(revisions.get(1).storedLength < revisions.get(0).storedLength);
+
+        try {
+            history.getContents("a", count + 1);
+            fail("Missing revision returned");
+        } catch (NoSuchFileException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void cutRecordIsRemoved() throws Exception {
+        SongHistory history = new SongHistory(path);
+        for (int i = 0; i < 3; i++) {
+            history.record("a", song(i, i), 1000 + i);
+        }
+        // the last append was interrupted
+        Path file = path.resolve("a" + SongHistory.HISTORY_EXTENSION);
+        truncate(file, 5);
+
+        history = new SongHistory(path);
+        assertEquals(2, history.getRevisions("a").size());
+        assertArrayEquals(song(1, 1), history.getContents("a", 2));
+
+        // the next append removes the cut record and follows the last valid one
+        history.record("a", song(50, 3), 2000);
+        List<SongHistory.Revision> revisions = history.getRevisions("a");
+        assertEquals(3, revisions.size());
+        assertFalse(revisions.get(2).keyframe);
+        assertEquals(2000, revisions.get(2).time);
+        assertArrayEquals(song(50, 3), history.getContents("a", 3));
+    }
+
+    @Test
+    public void cutFirstRecordIsRemoved() throws Exception {
+        SongHistory history = new SongHistory(path);
+        history.record("a", song(0, 0), 1000);
+        Path file = path.resolve("a" + SongHistory.HISTORY_EXTENSION);
+        truncate(file, 1);
+
+        history = new SongHistory(path);
+        assertTrue(history.getRevisions("a").isEmpty());
+
+        history.record("a", song(1, 1), 2000);
+        List<SongHistory.Revision> revisions = history.getRevisions("a");
+        assertEquals(1, revisions.size());
+        assertTrue(revisions.get(0).keyframe);
+        assertArrayEquals(song(1, 1), history.getContents("a", 1));
+    }
+
+    @Test
+    public void corruptedRecordIsRemoved() throws Exception {
+        SongHistory history = new SongHistory(path);
+        for (int i = 0; i < 3; i++) {
+            history.record("a", song(i, i), 1000 + i);
+        }
+        // changes a payload byte of the last record, its CRC no longer matches
+        try (RandomAccessFile access = new RandomAccessFile(path.resolve("a" + SongHistory.HISTORY_EXTENSION).toFile(), "rw")) {
+            long position = access.length() - 10;
+            access.seek(position);
+            int value = access.read();
+            access.seek(position);
+            access.write(value ^ 0xff);
+        }
+
+        history = new SongHistory(path);
+        assertEquals(2, history.getRevisions("a").size());
+        history.record("a", song(2, 2), 3000);
+        assertEquals(3, history.getRevisions("a").size());
+        assertArrayEquals(song(2, 2), history.getContents("a", 3));
+    }
+}